@@ -0,0 +1,59 @@
+package modum.io.monitor;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Optional;
+import javax.sql.DataSource;
+
+/**
+ * Postgres for the database benchmarks. Uses the database at BENCHMARK_JDBC_URL if set, with
+ * BENCHMARK_DATASOURCE_USERNAME and BENCHMARK_DATASOURCE_PASSWORD, otherwise starts an embedded
+ * Postgres. Tables created by a benchmark are dropped first, so don't point it at a real database.
+ */
+class BenchmarkDatabase implements AutoCloseable {
+  private final EmbeddedPostgres embedded;
+  private final HikariDataSource dataSource;
+
+  BenchmarkDatabase() throws IOException {
+    String jdbcUrl = System.getenv("BENCHMARK_JDBC_URL");
+    HikariConfig hikariConfig = new HikariConfig();
+    if (jdbcUrl != null) {
+      embedded = null;
+      hikariConfig.setJdbcUrl(jdbcUrl);
+      hikariConfig.setUsername(Optional.ofNullable(System.getenv("BENCHMARK_DATASOURCE_USERNAME"))
+          .orElse("postgres"));
+      hikariConfig.setPassword(System.getenv("BENCHMARK_DATASOURCE_PASSWORD"));
+    } else {
+      embedded = EmbeddedPostgres.builder().start();
+      hikariConfig.setDataSource(embedded.getPostgresDatabase());
+    }
+    dataSource = new HikariDataSource(hikariConfig);
+  }
+
+  DataSource getDataSource() {
+    return dataSource;
+  }
+
+  void execute(String... statements) throws SQLException {
+    try (
+        Connection conn = dataSource.getConnection();
+        Statement statement = conn.createStatement();
+    ) {
+      for (String sql : statements) {
+        statement.execute(sql);
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    dataSource.close();
+    if (embedded != null)
+      embedded.close();
+  }
+}
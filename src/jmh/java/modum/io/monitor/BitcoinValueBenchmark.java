@@ -0,0 +1,63 @@
+package modum.io.monitor;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.params.MainNetParams;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The per-output work of BitcoinMonitor.coinsReceived before the pay-in is saved: the USD value
+ * of the amount, the pay-in address of the output and the pay-in identifier.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BitcoinValueBenchmark {
+  private final static BigDecimal USD_PER_BTC = new BigDecimal("2534.1234567890");
+
+  private NetworkParameters chainParams;
+  private TransactionOutput utxo;
+  private long satoshi;
+
+  @Setup
+  public void setUp() {
+    chainParams = MainNetParams.get();
+    Transaction tx = new Transaction(chainParams);
+    utxo = tx.addOutput(Coin.valueOf(12_345_678L), new ECKey().toAddress(chainParams));
+    satoshi = utxo.getValue().getValue();
+  }
+
+  @Benchmark
+  public BigDecimal usdValue() {
+    return BitcoinMonitor.satoshiToUSD(satoshi, USD_PER_BTC);
+  }
+
+  @Benchmark
+  public String address() {
+    Address address = utxo.getAddressFromP2PKHScript(chainParams);
+    return address.toBase58();
+  }
+
+  @Benchmark
+  public String identifier() {
+    return utxo.getParentTransaction().getHashAsString() + "_" + String.valueOf(utxo.getIndex());
+  }
+}
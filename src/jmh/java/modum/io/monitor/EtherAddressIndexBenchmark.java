@@ -0,0 +1,98 @@
+package modum.io.monitor;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.spongycastle.util.encoders.Hex;
+
+/**
+ * Matching the 'to' and 'from' addresses of a transaction against the monitored addresses, as
+ * EthereumMonitor does for every transaction of every block. Almost all transactions miss, so
+ * misses are measured separately. The HashMap of lowercase strings is the baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EtherAddressIndexBenchmark {
+  private final static int LOOKUPS = 1024;
+
+  @Param({"1000", "100000"})
+  public int addresses;
+
+  private EtherAddressIndex index;
+  private Map<String, String> hashMap;
+  private String[] hits;
+  private String[] misses;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(42);
+    index = new EtherAddressIndex();
+    hashMap = new HashMap<>();
+    String[] monitored = new String[addresses];
+    for (int i = 0; i < addresses; i++) {
+      byte[] address = new byte[20];
+      random.nextBytes(address);
+      index.put(address, "key" + i);
+      monitored[i] = "0x" + Hex.toHexString(address);
+      hashMap.put(monitored[i], "key" + i);
+    }
+    hits = new String[LOOKUPS];
+    misses = new String[LOOKUPS];
+    for (int i = 0; i < LOOKUPS; i++) {
+      hits[i] = monitored[random.nextInt(addresses)];
+      byte[] address = new byte[20];
+      random.nextBytes(address);
+      misses[i] = "0x" + Hex.toHexString(address);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(LOOKUPS)
+  public int indexHit() {
+    int found = 0;
+    for (String address : hits) {
+      if (index.get(address) != null)
+        found++;
+    }
+    return found;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(LOOKUPS)
+  public int indexMiss() {
+    int found = 0;
+    for (String address : misses) {
+      if (index.get(address) != null)
+        found++;
+    }
+    return found;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(LOOKUPS)
+  public int hashMapMiss() {
+    int found = 0;
+    for (String address : misses) {
+      if (hashMap.get(address.toLowerCase()) != null)
+        found++;
+    }
+    return found;
+  }
+}
@@ -0,0 +1,118 @@
+package modum.io.monitor;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Exchange rate lookups of ExchangeRateService against 100k rates in Postgres, compared with
+ * the query per lookup that the in-memory indexes replace. ethRate and btcRate look up historical
+ * keys, as while catching up. ethRateLive and btcRateLive look up keys after the newest rate, as
+ * for live pay-ins.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExchangeRateBenchmark {
+  private final static int RATES = 100_000;
+  private final static long FIRST_BLOCK = 4_000_000L;
+  private final static long FIRST_TIMESTAMP = 1498867200L; // 2017-07-01
+  private final static int LOOKUPS = 1024;
+  private final static long LAST_BLOCK = FIRST_BLOCK + (RATES - 1) * 4L;
+  private final static long LAST_TIMESTAMP = FIRST_TIMESTAMP + (RATES - 1) * 60L;
+
+  private BenchmarkDatabase database;
+  private ExchangeRateService fxService;
+  private long[] blocks;
+  private long[] timestamps;
+  private int next = 0;
+
+  @Setup
+  public void setUp() throws IOException, SQLException {
+    database = new BenchmarkDatabase();
+    database.execute(
+        "DROP TABLE IF EXISTS exchange_rate",
+        "CREATE TABLE exchange_rate (\n"
+            + "  id SERIAL PRIMARY KEY,\n"
+            + "  block_nr_eth BIGINT,\n"
+            + "  rate_eth NUMERIC(32, 10),\n"
+            + "  rate_btc NUMERIC(32, 10),\n"
+            + "  creation_date TIMESTAMP NOT NULL\n"
+            + ")",
+        "CREATE INDEX ON exchange_rate (block_nr_eth)",
+        "INSERT INTO exchange_rate (block_nr_eth, rate_eth, rate_btc, creation_date)\n"
+            + "SELECT " + FIRST_BLOCK + " + g * 4, 200 + g % 100, 2500 + g % 1000,\n"
+            + "  to_timestamp(" + FIRST_TIMESTAMP + " + g * 60) AT TIME ZONE 'UTC'\n"
+            + "FROM generate_series(0, " + (RATES - 1) + ") g");
+    fxService = new ExchangeRateService(database.getDataSource());
+
+    Random random = new Random(42);
+    blocks = new long[LOOKUPS];
+    timestamps = new long[LOOKUPS];
+    for (int i = 0; i < LOOKUPS; i++) {
+      blocks[i] = FIRST_BLOCK + random.nextInt(RATES * 4);
+      timestamps[i] = FIRST_TIMESTAMP + random.nextInt(RATES * 60);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    database.close();
+  }
+
+  @Benchmark
+  public BigDecimal ethRate() throws SQLException {
+    return fxService.getUSDperETH(blocks[next++ & (LOOKUPS - 1)]);
+  }
+
+  @Benchmark
+  public BigDecimal btcRate() throws SQLException {
+    return fxService.getUSDPerBTC(timestamps[next++ & (LOOKUPS - 1)]);
+  }
+
+  @Benchmark
+  public BigDecimal ethRateLive() throws SQLException {
+    return fxService.getUSDperETH(LAST_BLOCK + (next++ & (LOOKUPS - 1)));
+  }
+
+  @Benchmark
+  public BigDecimal btcRateLive() throws SQLException {
+    return fxService.getUSDPerBTC(LAST_TIMESTAMP + (next++ & (LOOKUPS - 1)));
+  }
+
+  @Benchmark
+  public BigDecimal ethRateQuery() throws SQLException {
+    try (
+        Connection conn = database.getDataSource().getConnection();
+        PreparedStatement preparedStatement = conn.prepareStatement(""
+            + "SELECT rate_eth FROM exchange_rate \n"
+            + "WHERE block_nr_eth = (SELECT MAX(block_nr_eth) FROM exchange_rate \n"
+            + "WHERE block_nr_eth <= ?) ORDER BY creation_date ASC LIMIT 1");
+    ) {
+      preparedStatement.setLong(1, blocks[next++ & (LOOKUPS - 1)]);
+      try (ResultSet rs = preparedStatement.executeQuery()) {
+        rs.next();
+        return rs.getBigDecimal("rate_eth");
+      }
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package modum.io.monitor;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.web3j.protocol.Web3j;
+
+/**
+ * Time from a stand-in node producing a block until the live tail handed it to the monitor, where
+ * its pay-ins are detected. The node pushes the new head on the IPC socket or a WebSocket, or the
+ * live tail polls the head over HTTP with the default interval of 2 s.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class HeadDetectionBenchmark {
+  private final static long HEAD_BLOCK = 1_000_000L;
+  private final static long POLL_INTERVAL_MS = 2_000L;
+
+  @Param({"ipc", "websocket", "poll"})
+  public String source;
+
+  private final Object lock = new Object();
+  private long processedBlock = HEAD_BLOCK;
+  private StandInNode node;
+  private RpcTransport transport;
+  private Thread tailThread;
+
+  @Setup
+  public void setUp() throws Exception {
+    node = new StandInNode(100, HEAD_BLOCK);
+    String subscriptionUrl;
+    if (source.equals("ipc")) {
+      subscriptionUrl = node.startIpc();
+      transport = RpcTransport.create(subscriptionUrl, 2);
+    } else {
+      subscriptionUrl = source.equals("websocket") ? node.startWebSocket() : null;
+      transport = RpcTransport.create(node.startHttp(), 2);
+    }
+    EthereumLiveTail tail = new EthereumLiveTail(Web3j.build(new RpcTransportService(transport)),
+        new EthereumBlockFetcher(transport), subscriptionUrl != null
+        ? Collections.singletonList(subscriptionUrl) : Collections.emptyList(),
+        POLL_INTERVAL_MS, 50, 12);
+    tailThread = new Thread(() -> tail.run(HEAD_BLOCK + 1, block -> {
+      synchronized (lock) {
+        processedBlock = block.getNumber().longValue();
+        lock.notifyAll();
+      }
+    }), "ether-monitor");
+    tailThread.setDaemon(true);
+    tailThread.start();
+    long deadline = System.currentTimeMillis() + 10_000L;
+    while (subscriptionUrl != null && !tail.isSubscribed()) {
+      if (System.currentTimeMillis() > deadline)
+        throw new IllegalStateException("Live tail did not subscribe to new heads");
+      Thread.sleep(10);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException, InterruptedException {
+    tailThread.interrupt();
+    tailThread.join(5_000L);
+    transport.close();
+    node.close();
+  }
+
+  @Benchmark
+  public long detectBlock() throws InterruptedException {
+    long block = node.mineBlock();
+    synchronized (lock) {
+      while (processedBlock < block) {
+        lock.wait();
+      }
+    }
+    return block;
+  }
+}
@@ -0,0 +1,75 @@
+package modum.io.monitor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import modum.io.monitor.InvestorBootstrap.DeriveAddresses;
+import modum.io.monitor.InvestorBootstrap.Investor;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.params.MainNetParams;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to derive the bitcoin and ether addresses of 10'000 investors during the startup
+ * bootstrap, by the number of fork-join threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InvestorBootstrapBenchmark {
+  private final static int INVESTORS = 10_000;
+
+  @Param({"1", "2", "4", "8"})
+  public int parallelism;
+
+  private final NetworkParameters chainParams = MainNetParams.get();
+  private final List<String> bitcoinPublicKeys = new ArrayList<>();
+  private final List<String> etherPublicKeys = new ArrayList<>();
+  private ForkJoinPool pool;
+
+  @Setup
+  public void setUp() {
+    for (int i = 0; i < INVESTORS; i++) {
+      bitcoinPublicKeys.add(new ECKey().getPublicKeyAsHex());
+      etherPublicKeys.add(new ECKey().decompress().getPublicKeyAsHex());
+    }
+  }
+
+  @Setup(Level.Iteration)
+  public void startPool() {
+    pool = new ForkJoinPool(parallelism);
+  }
+
+  @TearDown(Level.Iteration)
+  public void stopPool() {
+    pool.shutdown();
+  }
+
+  @Benchmark
+  public List<Investor> deriveAddresses() {
+    List<Investor> investors = new ArrayList<>(INVESTORS);
+    for (int i = 0; i < INVESTORS; i++) {
+      investors.add(new Investor(bitcoinPublicKeys.get(i), etherPublicKeys.get(i), null, 0L));
+    }
+    return pool.invoke(new DeriveAddresses(investors, 0, INVESTORS,
+        publicKey -> BitcoinMonitor.deriveAddress(publicKey, chainParams),
+        EthereumMonitor::deriveAddress));
+  }
+}
@@ -0,0 +1,105 @@
+package modum.io.monitor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.mail.javamail.MimeMessageHelper;
+import org.thymeleaf.TemplateEngine;
+import org.thymeleaf.context.Context;
+import org.thymeleaf.templateresolver.ClassLoaderTemplateResolver;
+import spark.utils.IOUtils;
+
+/**
+ * Cost of building and encoding one confirmation mail: a full Thymeleaf run and logo read per
+ * mail, as MailService did before, against the pre-rendered ConfirmationMailTemplate.
+ * Run with "-prof gc" (the default of the jmh task) to see the allocation per mail.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MailRenderBenchmark {
+  private final static String AMOUNT = "1.25 ETH";
+  private final static String LINK =
+      "https://etherscan.io/tx/0x5c504ed432cb51138bcf09aa5e8a410dd4a1e204ef84bfed1be16dfba1b22060";
+
+  private Session session;
+  private TemplateEngine templateEngine;
+  private ConfirmationMailTemplate template;
+
+  @Setup
+  public void setUp() throws IOException {
+    session = Session.getInstance(new Properties());
+    templateEngine = new TemplateEngine();
+    templateEngine.setTemplateResolver(new ClassLoaderTemplateResolver());
+    template = new ConfirmationMailTemplate();
+  }
+
+  @Benchmark
+  public long thymeleafPerMail() throws MessagingException, IOException {
+    MimeMessageHelper messageHelper = createMessageHelper();
+    Context context = new Context();
+    context.setVariable("amount", AMOUNT);
+    context.setVariable("link", LINK);
+    messageHelper.setText(templateEngine.process(ConfirmationMailTemplate.TEMPLATE, context), true);
+    messageHelper.addInline("modumLogo", new ByteArrayResource(IOUtils.toByteArray(
+        getClass().getResourceAsStream(ConfirmationMailTemplate.LOGO))), "image/png");
+    return write(messageHelper.getMimeMessage());
+  }
+
+  @Benchmark
+  public long preRendered() throws MessagingException, IOException {
+    MimeMessageHelper messageHelper = createMessageHelper();
+    template.setContent(messageHelper, AMOUNT, LINK);
+    return write(messageHelper.getMimeMessage());
+  }
+
+  private MimeMessageHelper createMessageHelper() throws MessagingException {
+    MimeMessageHelper messageHelper = new MimeMessageHelper(new MimeMessage(session), true, "UTF-8");
+    messageHelper.setSubject("Payment received");
+    messageHelper.setFrom("token@modum.io");
+    messageHelper.setTo("investor@example.com");
+    return messageHelper;
+  }
+
+  /**
+   * Encodes the message as it would be sent and returns its size
+   */
+  private static long write(MimeMessage message) throws MessagingException, IOException {
+    message.saveChanges();
+    CountingOutputStream out = new CountingOutputStream();
+    message.writeTo(out);
+    return out.count;
+  }
+
+  private static class CountingOutputStream extends OutputStream {
+    private long count = 0L;
+
+    @Override
+    public void write(int b) {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+}
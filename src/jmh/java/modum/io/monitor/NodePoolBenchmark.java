@@ -0,0 +1,72 @@
+package modum.io.monitor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.web3j.protocol.core.methods.response.EthBlock.Block;
+
+/**
+ * Latency distribution of fetching a block from stand-in nodes that stall one in STALL_EVERY
+ * answers for STALL_MS, from a single node or from a NodePoolTransport of two nodes, which hedges
+ * requests slower than the p99 of the node. Compare the p99.9 and the maximum.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 6)
+@Measurement(iterations = 5, time = 6)
+@Fork(1)
+public class NodePoolBenchmark {
+  private final static long HEAD_BLOCK = 1_000_000L;
+  private final static int STALL_EVERY = 500;
+  private final static long STALL_MS = 50L;
+
+  @Param({"1", "2"})
+  public int nodeCount;
+
+  private final List<StandInNode> nodes = new ArrayList<>();
+  private RpcTransport transport;
+  private EthereumBlockFetcher fetcher;
+  private long nextBlock = 0;
+
+  @Setup
+  public void setUp() throws IOException {
+    List<String> urls = new ArrayList<>();
+    for (int i = 0; i < nodeCount; i++) {
+      StandInNode node = new StandInNode(100, HEAD_BLOCK);
+      node.setStall(STALL_EVERY, STALL_MS);
+      nodes.add(node);
+      urls.add(node.startIpc());
+    }
+    transport = RpcTransport.create(String.join(",", urls), 4);
+    fetcher = new EthereumBlockFetcher(transport);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    transport.close();
+    for (StandInNode node : nodes) {
+      node.close();
+    }
+  }
+
+  @Benchmark
+  public List<Block> fetchBlock() throws IOException {
+    long block = nextBlock;
+    nextBlock = (nextBlock + 1) % HEAD_BLOCK;
+    return fetcher.getBlocks(block, block);
+  }
+}
@@ -0,0 +1,88 @@
+package modum.io.monitor;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.methods.response.EthBlock.Block;
+
+/**
+ * Time per block fetched by EthereumBlockFetcher from a node on the same host, over HTTP and
+ * over the IPC socket. A single block is fetched for each new block at the head of the chain,
+ * batches while catching up. eth_blockNumber is the smallest request and shows the per-call
+ * overhead of the transport.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RpcTransportBenchmark {
+  private final static long HEAD_BLOCK = 1_000_000L;
+  private final static int BATCH = 10;
+
+  @Param({"http", "ipc"})
+  public String transportType;
+
+  @Param({"100"})
+  public int transactionsPerBlock;
+
+  private StandInNode node;
+  private RpcTransport transport;
+  private EthereumBlockFetcher fetcher;
+  private Web3j web3j;
+  private long nextBlock = 0;
+
+  @Setup
+  public void setUp() throws IOException {
+    node = new StandInNode(transactionsPerBlock, HEAD_BLOCK);
+    String url = transportType.equals("ipc") ? node.startIpc() : node.startHttp();
+    transport = RpcTransport.create(url, 4);
+    fetcher = new EthereumBlockFetcher(transport);
+    web3j = Web3j.build(new RpcTransportService(transport));
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    transport.close();
+    node.close();
+  }
+
+  @Benchmark
+  public List<Block> fetchBlock() throws IOException {
+    long block = next(1);
+    return fetcher.getBlocks(block, block);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public List<Block> fetchBatch() throws IOException {
+    long block = next(BATCH);
+    return fetcher.getBlocks(block, block + BATCH - 1);
+  }
+
+  @Benchmark
+  public Object blockNumber() throws IOException {
+    return web3j.ethBlockNumber().send().getBlockNumber();
+  }
+
+  private long next(int blocks) {
+    long block = nextBlock;
+    nextBlock = (nextBlock + blocks) % (HEAD_BLOCK - BATCH);
+    return block;
+  }
+}
@@ -0,0 +1,123 @@
+package modum.io.monitor;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time per pay-in written by UserService, for a single caller, for concurrent callers and for a
+ * burst of asynchronous saves as in a catch-up. The single-row insert on its own connection is
+ * the baseline, as savePayIn worked before the pay-in writer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SavePayInBenchmark {
+  private final static int BURST = 100;
+  private final static BigInteger VALUE = new BigInteger("1250000000000000000");
+  private final static BigDecimal FX_RATE = new BigDecimal("301.2500000000");
+  private final static BigDecimal USD = new BigDecimal("376.5625000000");
+  private final static String EMAIL = "investor@example.com";
+  private final static String ADDRESS = "0x6b4ccd1a4a0c43d3d6fa4e0b5e1bd0c6bb8aa3e1";
+
+  @Param({"0", "5"})
+  public long flushMillis;
+
+  private final AtomicLong identifiers = new AtomicLong();
+  private BenchmarkDatabase database;
+  private UserService userService;
+
+  @Setup
+  public void setUp() throws IOException, SQLException {
+    database = new BenchmarkDatabase();
+    database.execute(
+        "DROP TABLE IF EXISTS payment_log",
+        "CREATE TABLE payment_log (\n"
+            + "  tx_identifier VARCHAR(255) PRIMARY KEY,\n"
+            + "  creation_date TIMESTAMP NOT NULL,\n"
+            + "  currency VARCHAR(8) NOT NULL,\n"
+            + "  paymentvalue NUMERIC(32, 0) NOT NULL,\n"
+            + "  fx_rate NUMERIC(32, 10),\n"
+            + "  usd NUMERIC(32, 10),\n"
+            + "  email VARCHAR(255)\n"
+            + ")");
+    userService = new UserService(database.getDataSource(), 100, flushMillis, true);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    userService.stop();
+    database.close();
+  }
+
+  @Benchmark
+  public boolean savePayIn() throws SQLException {
+    return userService.savePayIn(nextIdentifier(), "ETH", VALUE, FX_RATE, USD, EMAIL, ADDRESS);
+  }
+
+  @Benchmark
+  @Threads(16)
+  public boolean savePayInConcurrent() throws SQLException {
+    return userService.savePayIn(nextIdentifier(), "ETH", VALUE, FX_RATE, USD, EMAIL, ADDRESS);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BURST)
+  public void savePayInBurst() {
+    CompletableFuture<?>[] saves = new CompletableFuture<?>[BURST];
+    for (int i = 0; i < BURST; i++) {
+      saves[i] = userService.savePayInAsync(nextIdentifier(), "ETH", VALUE, FX_RATE, USD, EMAIL,
+          ADDRESS);
+    }
+    CompletableFuture.allOf(saves).join();
+  }
+
+  @Benchmark
+  public int insertPerPayIn() throws SQLException {
+    try (
+        Connection conn = database.getDataSource().getConnection();
+        PreparedStatement preparedStatement = conn.prepareStatement(""
+            + "INSERT INTO payment_log "
+            + "(tx_identifier, creation_date, currency, paymentvalue, fx_rate, usd, email, address) "
+            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?) ON CONFLICT DO NOTHING");
+    ) {
+      preparedStatement.setString(1, nextIdentifier());
+      preparedStatement.setTimestamp(2, new Timestamp(System.currentTimeMillis()));
+      preparedStatement.setString(3, "ETH");
+      preparedStatement.setBigDecimal(4, new BigDecimal(VALUE));
+      preparedStatement.setBigDecimal(5, FX_RATE);
+      preparedStatement.setBigDecimal(6, USD);
+      preparedStatement.setString(7, EMAIL);
+      preparedStatement.setString(8, ADDRESS);
+      return preparedStatement.executeUpdate();
+    }
+  }
+
+  private String nextIdentifier() {
+    return "0x" + Long.toHexString(identifiers.incrementAndGet());
+  }
+}
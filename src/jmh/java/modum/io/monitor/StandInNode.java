@@ -0,0 +1,398 @@
+package modum.io.monitor;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import jnr.unixsocket.UnixServerSocketChannel;
+import jnr.unixsocket.UnixSocketAddress;
+import jnr.unixsocket.UnixSocketChannel;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketListener;
+import org.eclipse.jetty.websocket.server.WebSocketHandler;
+import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
+
+/**
+ * Minimal ethereum JSON-RPC node for benchmarks, serving a chain of canned blocks over HTTP, over
+ * a Unix domain socket like geth.ipc and over a WebSocket. Answers eth_blockNumber and
+ * eth_getBlockByNumber with full transactions, as single requests and as batches. All endpoints
+ * share the same request handling, so differences in the measurements are due to the transport.
+ *
+ * mineBlock() appends a block with the current time as its timestamp, and pushes its header to
+ * the eth_subscribe("newHeads") subscriptions on the IPC socket and the WebSocket. setStall()
+ * delays some of the answers, like a node busy with garbage collection or disk reads.
+ */
+class StandInNode implements Closeable {
+  private final ObjectMapper objectMapper = new ObjectMapper();
+  private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+    Thread thread = new Thread(runnable, "stand-in-node");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final Set<UnixSocketChannel> ipcConnections = ConcurrentHashMap.newKeySet();
+  private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+  private final Map<Long, Long> minedTimestamps = new ConcurrentHashMap<>();
+  private final AtomicLong requestCount = new AtomicLong();
+  private final int transactionsPerBlock;
+  private volatile long headBlock;
+  private volatile int stallEvery = 0;
+  private volatile long stallMillis = 0L;
+  private HttpServer httpServer;
+  private Server webSocketServer;
+  private UnixServerSocketChannel ipcServer;
+  private File ipcPath;
+
+  /**
+   * @param transactionsPerBlock Number of transactions in each block
+   * @param headBlock Number of the latest block, all blocks up to it are available
+   */
+  StandInNode(int transactionsPerBlock, long headBlock) {
+    this.transactionsPerBlock = transactionsPerBlock;
+    this.headBlock = headBlock;
+  }
+
+  /**
+   * @return The URL of the HTTP endpoint
+   */
+  String startHttp() throws IOException {
+    // Like the node, answer without waiting for the delayed ACK of the request
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+    httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 64);
+    httpServer.setExecutor(executor);
+    httpServer.createContext("/", exchange -> {
+      byte[] response;
+      try (InputStream in = exchange.getRequestBody()) {
+        response = handle(objectMapper.readTree(in), null).getBytes(UTF_8);
+      }
+      exchange.getResponseHeaders().add("Content-Type", "application/json");
+      exchange.sendResponseHeaders(200, response.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(response);
+      }
+    });
+    httpServer.start();
+    return "http://127.0.0.1:" + httpServer.getAddress().getPort();
+  }
+
+  /**
+   * @return The filesystem path of the IPC socket
+   */
+  String startIpc() throws IOException {
+    File path = File.createTempFile("stand-in-node", ".ipc");
+    path.delete();
+    return startIpc(path);
+  }
+
+  /**
+   * @param path Filesystem path of the IPC socket, which must not exist
+   * @return The filesystem path of the IPC socket
+   */
+  String startIpc(File path) throws IOException {
+    ipcPath = path;
+    ipcServer = UnixServerSocketChannel.open();
+    ipcServer.socket().bind(new UnixSocketAddress(ipcPath));
+    executor.execute(() -> {
+      while (ipcServer.isOpen()) {
+        try {
+          UnixSocketChannel channel = ipcServer.accept();
+          ipcConnections.add(channel);
+          executor.execute(() -> serveIpc(channel));
+        } catch (IOException e) {
+          return;
+        }
+      }
+    });
+    return ipcPath.getAbsolutePath();
+  }
+
+  /**
+   * @return The WebSocket URL
+   */
+  String startWebSocket() throws Exception {
+    webSocketServer = new Server(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    webSocketServer.setHandler(new WebSocketHandler() {
+      @Override
+      public void configure(WebSocketServletFactory factory) {
+        factory.setCreator((request, response) -> new WebSocketConnection());
+      }
+    });
+    webSocketServer.start();
+    return "ws://127.0.0.1:" + webSocketServer.getURI().getPort();
+  }
+
+  /**
+   * Appends a block and pushes its header to the subscribers
+   * @return The number of the new block
+   */
+  long mineBlock() {
+    long number = headBlock + 1;
+    minedTimestamps.put(number, System.currentTimeMillis() / 1000L);
+    headBlock = number;
+    StringBuilder header = new StringBuilder(512);
+    header.append("{\"jsonrpc\":\"2.0\",\"method\":\"eth_subscription\",\"params\":")
+        .append("{\"subscription\":\"0x1\",\"result\":{\"number\":\"").append(hex(number))
+        .append("\",\"hash\":\"").append(hash(number))
+        .append("\",\"parentHash\":\"").append(hash(number - 1))
+        .append("\",\"timestamp\":\"").append(hex(timestamp(number))).append("\"}}}");
+    for (Subscriber subscriber : subscribers) {
+      try {
+        subscriber.push(header.toString());
+      } catch (IOException e) {
+        subscribers.remove(subscriber);
+      }
+    }
+    return number;
+  }
+
+  void setHeadBlock(long headBlock) {
+    this.headBlock = headBlock;
+  }
+
+  /**
+   * Delays every n-th answer
+   * @param every Delay one in this many answers, 0 to never delay
+   * @param millis The delay
+   */
+  void setStall(int every, long millis) {
+    this.stallMillis = millis;
+    this.stallEvery = every;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (httpServer != null)
+      httpServer.stop(0);
+    if (webSocketServer != null) {
+      try {
+        webSocketServer.stop();
+      } catch (Exception e) {
+        throw new IOException(e);
+      }
+    }
+    if (ipcServer != null) {
+      ipcServer.close();
+      ipcPath.delete();
+      for (UnixSocketChannel channel : ipcConnections) {
+        // Closing alone leaves the reader blocked, and the client without an end of stream
+        try {
+          channel.socket().shutdownInput();
+          channel.socket().shutdownOutput();
+        } catch (IOException e) {
+          // Already closed by the client
+        }
+        channel.close();
+      }
+    }
+    executor.shutdownNow();
+  }
+
+  private void serveIpc(UnixSocketChannel channel) {
+    // Written to the channel directly, a stream would wait for the lock held by the reader
+    Subscriber subscriber = message -> {
+      ByteBuffer buffer = ByteBuffer.wrap((message + "\n").getBytes(UTF_8));
+      synchronized (channel) {
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+      }
+    };
+    try (JsonParser parser = objectMapper.getFactory()
+        .createParser(Channels.newInputStream(channel))) {
+      // Like geth, answer every JSON value on the connection, without any framing
+      while (parser.nextToken() != null) {
+        subscriber.push(handle(objectMapper.readTree(parser), subscriber));
+      }
+    } catch (IOException e) {
+      // Client disconnected
+    } finally {
+      subscribers.remove(subscriber);
+      ipcConnections.remove(channel);
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // Already closed
+      }
+    }
+  }
+
+  /**
+   * @param subscriber Connection of the request, or null if it can't receive notifications
+   */
+  private String handle(JsonNode request, Subscriber subscriber) {
+    int every = stallEvery;
+    if (every > 0 && requestCount.incrementAndGet() % every == 0) {
+      try {
+        Thread.sleep(stallMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    StringBuilder response = new StringBuilder(4096);
+    if (request.isArray()) {
+      response.append('[');
+      for (int i = 0; i < request.size(); i++) {
+        if (i > 0)
+          response.append(',');
+        handleSingle(request.get(i), subscriber, response);
+      }
+      response.append(']');
+    } else {
+      handleSingle(request, subscriber, response);
+    }
+    return response.toString();
+  }
+
+  private void handleSingle(JsonNode request, Subscriber subscriber, StringBuilder response) {
+    response.append("{\"jsonrpc\":\"2.0\",\"id\":").append(request.path("id").toString());
+    String method = request.path("method").asText();
+    switch (method) {
+      case "eth_blockNumber":
+        response.append(",\"result\":\"").append(hex(headBlock)).append("\"}");
+        break;
+      case "eth_getBlockByNumber":
+        long number = Long.decode(request.path("params").path(0).asText());
+        response.append(",\"result\":");
+        if (number > headBlock)
+          response.append("null");
+        else
+          appendBlock(number, response);
+        response.append('}');
+        break;
+      case "eth_subscribe":
+        if (subscriber == null || !"newHeads".equals(request.path("params").path(0).asText())) {
+          response.append(",\"error\":{\"code\":-32000,\"message\":")
+              .append("\"notifications not supported\"}}");
+        } else {
+          subscribers.add(subscriber);
+          response.append(",\"result\":\"0x1\"}");
+        }
+        break;
+      default:
+        response.append(",\"error\":{\"code\":-32601,\"message\":\"The method ").append(method)
+            .append(" does not exist\"}}");
+    }
+  }
+
+  private void appendBlock(long number, StringBuilder out) {
+    String hash = hash(number);
+    out.append("{\"number\":\"").append(hex(number))
+        .append("\",\"hash\":\"").append(hash)
+        .append("\",\"parentHash\":\"").append(hash(number - 1))
+        .append("\",\"nonce\":\"0x0000000000000000\",\"sha3Uncles\":\"").append(hash(0))
+        .append("\",\"logsBloom\":\"0x").append(zeros(512))
+        .append("\",\"transactionsRoot\":\"").append(hash)
+        .append("\",\"stateRoot\":\"").append(hash)
+        .append("\",\"receiptsRoot\":\"").append(hash)
+        .append("\",\"miner\":\"0x").append(zeros(40))
+        .append("\",\"difficulty\":\"0x1\",\"totalDifficulty\":\"").append(hex(number))
+        .append("\",\"extraData\":\"0x\",\"size\":\"0x400\",\"gasLimit\":\"0x47e7c4\"")
+        .append(",\"gasUsed\":\"").append(hex(21000L * transactionsPerBlock))
+        .append("\",\"timestamp\":\"").append(hex(timestamp(number)))
+        .append("\",\"transactions\":[");
+    for (int i = 0; i < transactionsPerBlock; i++) {
+      if (i > 0)
+        out.append(',');
+      out.append("{\"hash\":\"").append(hash(number * 1_000 + i))
+          .append("\",\"nonce\":\"").append(hex(i))
+          .append("\",\"blockHash\":\"").append(hash)
+          .append("\",\"blockNumber\":\"").append(hex(number))
+          .append("\",\"transactionIndex\":\"").append(hex(i))
+          .append("\",\"from\":\"").append(address(i))
+          .append("\",\"to\":\"").append(address(number + i))
+          .append("\",\"value\":\"0xde0b6b3a7640000\",\"gasPrice\":\"0x4a817c800\"")
+          .append(",\"gas\":\"0x5208\",\"input\":\"0x\",\"r\":\"").append(hash(i))
+          .append("\",\"s\":\"").append(hash(i)).append("\",\"v\":27}");
+    }
+    out.append("],\"uncles\":[]}");
+  }
+
+  private long timestamp(long number) {
+    Long mined = minedTimestamps.get(number);
+    return mined != null ? mined : 1_500_000_000L + number * 15;
+  }
+
+  private static String hex(long value) {
+    return "0x" + Long.toHexString(value);
+  }
+
+  private static String hash(long value) {
+    return "0x" + pad(Long.toHexString(value), 64);
+  }
+
+  private static String address(long value) {
+    return "0x" + pad(Long.toHexString(value), 40);
+  }
+
+  private static String pad(String hex, int length) {
+    return zeros(length - hex.length()) + hex;
+  }
+
+  private static String zeros(int length) {
+    StringBuilder zeros = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      zeros.append('0');
+    }
+    return zeros.toString();
+  }
+
+  private interface Subscriber {
+    void push(String message) throws IOException;
+  }
+
+  private class WebSocketConnection implements WebSocketListener, Subscriber {
+    private volatile Session session;
+
+    @Override
+    public void push(String message) throws IOException {
+      synchronized (this) {
+        session.getRemote().sendString(message);
+      }
+    }
+
+    @Override
+    public void onWebSocketText(String message) {
+      try {
+        push(handle(objectMapper.readTree(message), this));
+      } catch (IOException e) {
+        session.close();
+      }
+    }
+
+    @Override
+    public void onWebSocketConnect(Session session) {
+      this.session = session;
+    }
+
+    @Override
+    public void onWebSocketClose(int statusCode, String reason) {
+      subscribers.remove(this);
+    }
+
+    @Override
+    public void onWebSocketError(Throwable cause) {
+      subscribers.remove(this);
+    }
+
+    @Override
+    public void onWebSocketBinary(byte[] payload, int offset, int length) {
+    }
+  }
+}
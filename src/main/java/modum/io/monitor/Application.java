@@ -4,22 +4,32 @@ import static spark.Spark.*;
 
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
-import java.sql.ResultSet;
+import java.io.IOException;
+import java.net.ConnectException;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.time.Instant;
-import java.util.Date;
 import java.util.Optional;
-import org.apache.http.conn.HttpHostConnectException;
+import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import spark.Response;
 
 public class Application {
   private final static Logger LOG = LoggerFactory.getLogger(Application.class);
 
   private final Long START_BLOCK;
+  private final Integer ETHER_CATCHUP_BATCH_SIZE;
+  private final Integer ETHER_CATCHUP_PARALLELISM;
+  private final Integer ETHER_REORG_SAFETY_MARGIN;
   private final String ETHER_FULLNODE_URL;
+  private final String ETHER_FULLNODE_WS_URL;
+  private final Long ETHER_POLL_INTERVAL_MS;
   private final String MODUM_TOKENAPP_BITCOIN_NETWORK;
+  private final String MODUM_TOKENAPP_BITCOIN_DATA_DIR;
+  private final Double MODUM_TOKENAPP_BITCOIN_BLOOM_FP_RATE;
+  private final Long MODUM_TOKENAPP_BITCOIN_PENDING_EXPIRY_HOURS;
+  private final Integer MODUM_TOKENAPP_PAYIN_BATCH_SIZE;
+  private final Long MODUM_TOKENAPP_PAYIN_FLUSH_MILLIS;
   private final String JDBC_URL;
   private final String DATASOURCE_USERNAME;
   private final String DATASOURCE_PASSWORD;
@@ -28,7 +38,9 @@ public class Application {
   private final String MODUM_TOKENAPP_EMAIL_HOST;
   private final String MODUM_TOKENAPP_EMAIL_PORT;
   private final String MODUM_TOKENAPP_EMAIL_BCC;
+  private final Integer MODUM_TOKENAPP_EMAIL_WORKERS;
   private final Long MODUM_TOKENAPP_START_AMOUNT;
+  private final String MODUM_TOKENAPP_ADMIN_TOKEN;
   private boolean MODUM_TOKENAPP_ENABLE_CORS;
   private boolean MODUM_TOKENAPP_CREATE_SCHEMA;
 
@@ -37,6 +49,9 @@ public class Application {
   private ExchangeRateService fxService;
   private UserService userService;
   private MailService mailService;
+  private CheckpointService checkpointService;
+  private final TotalsLedger totalsLedger = new TotalsLedger();
+  private final PayInIndex payInIndex = new PayInIndex();
   private HikariDataSource databaseSource;
   private DatabaseWatcher databaseWatcher;
 
@@ -63,8 +78,20 @@ public class Application {
     MODUM_TOKENAPP_CREATE_SCHEMA = Boolean.parseBoolean(Optional.ofNullable(System.getenv("MODUM_TOKENAPP_CREATE_SCHEMA")).orElse("false"));
     MODUM_TOKENAPP_ENABLE_CORS = Boolean.parseBoolean(Optional.ofNullable(System.getenv("MODUM_TOKENAPP_ENABLE_CORS")).orElse("false"));
     MODUM_TOKENAPP_BITCOIN_NETWORK = Optional.ofNullable(System.getenv("MODUM_TOKENAPP_BITCOIN_NETWORK")).orElse("mainnet");
+    MODUM_TOKENAPP_BITCOIN_DATA_DIR = System.getenv("MODUM_TOKENAPP_BITCOIN_DATA_DIR");
+    MODUM_TOKENAPP_BITCOIN_BLOOM_FP_RATE = Optional.ofNullable(System.getenv("MODUM_TOKENAPP_BITCOIN_BLOOM_FP_RATE")).map(Double::valueOf).orElse(null);
+    MODUM_TOKENAPP_BITCOIN_PENDING_EXPIRY_HOURS = Long.valueOf(Optional.ofNullable(System.getenv("MODUM_TOKENAPP_BITCOIN_PENDING_EXPIRY_HOURS")).orElse("72"));
+    MODUM_TOKENAPP_EMAIL_WORKERS = Integer.valueOf(Optional.ofNullable(System.getenv("MODUM_TOKENAPP_EMAIL_WORKERS")).orElse("2"));
+    MODUM_TOKENAPP_PAYIN_BATCH_SIZE = Integer.valueOf(Optional.ofNullable(System.getenv("MODUM_TOKENAPP_PAYIN_BATCH_SIZE")).orElse("100"));
+    MODUM_TOKENAPP_PAYIN_FLUSH_MILLIS = Long.valueOf(Optional.ofNullable(System.getenv("MODUM_TOKENAPP_PAYIN_FLUSH_MILLIS")).orElse("50"));
     START_BLOCK = Long.valueOf(Optional.ofNullable(System.getenv("START_BLOCK_ETHER")).orElse("1"));
+    ETHER_CATCHUP_BATCH_SIZE = Integer.valueOf(Optional.ofNullable(System.getenv("ETHER_CATCHUP_BATCH_SIZE")).orElse("50"));
+    ETHER_CATCHUP_PARALLELISM = Integer.valueOf(Optional.ofNullable(System.getenv("ETHER_CATCHUP_PARALLELISM")).orElse("4"));
+    ETHER_REORG_SAFETY_MARGIN = Integer.valueOf(Optional.ofNullable(System.getenv("ETHER_REORG_SAFETY_MARGIN")).orElse("12"));
+    ETHER_FULLNODE_WS_URL = System.getenv("ETHER_FULLNODE_WS_URL");
+    ETHER_POLL_INTERVAL_MS = Long.valueOf(Optional.ofNullable(System.getenv("ETHER_POLL_INTERVAL_MS")).orElse("2000"));
     MODUM_TOKENAPP_START_AMOUNT = Long.valueOf(Optional.ofNullable(System.getenv("MODUM_TOKENAPP_START_AMOUNT")).orElse("0"));
+    MODUM_TOKENAPP_ADMIN_TOKEN = System.getenv("MODUM_TOKENAPP_ADMIN_TOKEN");
   }
 
   public static void main(String[] args) throws Exception {
@@ -77,22 +104,31 @@ public class Application {
       initDatabase();
       initExchangeRateService();
       initUserService();
+      initCheckpointService();
       initEmailService();
       initMonitors();
       initRoutes();
-    } catch (HttpHostConnectException e) {
+    } catch (ConnectException e) {
       LOG.error("Could not connect to ethereum fullnode on {}: {}", ETHER_FULLNODE_URL, e.getMessage());
       System.exit(1);
     }
   }
 
-  private void initEmailService() {
+  private void initEmailService() throws SQLException, IOException {
     mailService = new MailService(MODUM_TOKENAPP_EMAIL_HOST, MODUM_TOKENAPP_EMAIL_PORT,
-        MODUM_TOKENAPP_EMAIL_USERNAME, MODUM_TOKENAPP_EMAIL_PASSWORD, MODUM_TOKENAPP_EMAIL_BCC);
+        MODUM_TOKENAPP_EMAIL_USERNAME, MODUM_TOKENAPP_EMAIL_PASSWORD, MODUM_TOKENAPP_EMAIL_BCC,
+        databaseSource, MODUM_TOKENAPP_EMAIL_WORKERS, MODUM_TOKENAPP_CREATE_SCHEMA);
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> mailService.stop()));
   }
 
-  private void initUserService() {
-    this.userService = new UserService(databaseSource);
+  private void initUserService() throws SQLException {
+    this.userService = new UserService(databaseSource, MODUM_TOKENAPP_PAYIN_BATCH_SIZE,
+        MODUM_TOKENAPP_PAYIN_FLUSH_MILLIS, MODUM_TOKENAPP_CREATE_SCHEMA);
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> userService.stop()));
+  }
+
+  private void initCheckpointService() throws SQLException {
+    this.checkpointService = new CheckpointService(databaseSource, MODUM_TOKENAPP_CREATE_SCHEMA);
   }
 
   private void initDatabase() {
@@ -104,20 +140,57 @@ public class Application {
   }
 
   private void initMonitors() throws Exception {
-    ethereumMonitor = new EthereumMonitor(userService, mailService, fxService, ETHER_FULLNODE_URL);
-    bitcoinMonitor = new BitcoinMonitor(userService, mailService, fxService, MODUM_TOKENAPP_BITCOIN_NETWORK);
+    ethereumMonitor = new EthereumMonitor(userService, mailService, fxService, totalsLedger,
+        payInIndex, checkpointService, ETHER_FULLNODE_URL, ETHER_FULLNODE_WS_URL,
+        ETHER_POLL_INTERVAL_MS, ETHER_CATCHUP_BATCH_SIZE, ETHER_CATCHUP_PARALLELISM, ETHER_REORG_SAFETY_MARGIN);
+    bitcoinMonitor = new BitcoinMonitor(userService, mailService, fxService, totalsLedger,
+        payInIndex, MODUM_TOKENAPP_BITCOIN_NETWORK, MODUM_TOKENAPP_BITCOIN_DATA_DIR,
+        MODUM_TOKENAPP_BITCOIN_BLOOM_FP_RATE, MODUM_TOKENAPP_BITCOIN_PENDING_EXPIRY_HOURS);
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> bitcoinMonitor.stop()));
 
     databaseWatcher = new DatabaseWatcher(databaseSource,
-        newBitcoinAddress -> {
-          bitcoinMonitor.addMonitoredPublicKey(newBitcoinAddress, Instant.now().getEpochSecond());
+        TriggerAction.ofBatches(newBitcoinAddresses -> {
+          long now = Instant.now().getEpochSecond();
+          bitcoinMonitor.addMonitoredPublicKeys(newBitcoinAddresses.stream()
+              .collect(Collectors.toMap(publicKey -> publicKey, publicKey -> now)));
+          try {
+            userService.refreshEmailsForBitcoinPublicKeys(newBitcoinAddresses);
+          } catch (SQLException e) {
+            LOG.error("Could not cache investors for {} bitcoin public keys. {} {}",
+                newBitcoinAddresses.size(), e.getMessage(), e.getCause());
+          }
+        }),
+        TriggerAction.ofBatches(newEthereumAddresses -> {
+          ethereumMonitor.addMonitoredEtherPublicKeys(newEthereumAddresses);
+          try {
+            userService.refreshEmailsForEtherPublicKeys(newEthereumAddresses);
+          } catch (SQLException e) {
+            LOG.error("Could not cache investors for {} ether public keys. {} {}",
+                newEthereumAddresses.size(), e.getMessage(), e.getCause());
+          }
+        }),
+        newExchangeRate -> {
+          try {
+            fxService.refresh();
+          } catch (SQLException e) {
+            LOG.error("Could not refresh exchange rates. {} {}", e.getMessage(), e.getCause());
+          }
         },
-        newEthereumAddress -> {
-          ethereumMonitor.addMonitoredEtherPublicKey(newEthereumAddress);
+        () -> {
+          try {
+            resyncAddresses();
+            fxService.refresh();
+          } catch (SQLException e) {
+            LOG.error("Could not resync investors and exchange rates. {} {}", e.getMessage(),
+                e.getCause());
+          }
         },
         MODUM_TOKENAPP_CREATE_SCHEMA);
     Runtime.getRuntime().addShutdownHook(new Thread(() -> databaseWatcher.stop()));
 
     monitorExistingAddresses();
+    userService.loadAddressTotals(payInIndex);
+    LOG.info("Loaded pay-in totals of {} addresses", payInIndex.size());
 
     ethereumMonitor.start(START_BLOCK);
     bitcoinMonitor.start();
@@ -130,25 +203,22 @@ public class Application {
    * @throws SQLException
    */
   private void monitorExistingAddresses() throws SQLException {
-    Statement stm = databaseSource.getConnection().createStatement();
-    ResultSet rs = stm.executeQuery(""
-        + "SELECT pay_in_bitcoin_public_key, pay_in_ether_public_key, creation_date FROM investor;");
-
-    while(rs.next()) {
-      String bitcoinPublicKey = rs.getString("pay_in_bitcoin_public_key");
-      String etherPublicKey = rs.getString("pay_in_ether_public_key");
-      Date creationDate = rs.getDate("creation_date");
-      long timestamp = creationDate.getTime() / 1000L;
-
-      if (bitcoinPublicKey != null)
-        bitcoinMonitor.addMonitoredPublicKey(bitcoinPublicKey, timestamp);
+    new InvestorBootstrap(databaseSource, userService, bitcoinMonitor, ethereumMonitor,
+        new DerivedAddressStore(databaseSource, MODUM_TOKENAPP_CREATE_SCHEMA),
+        Runtime.getRuntime().availableProcessors()).run();
+  }
 
-      if (etherPublicKey != null)
-        ethereumMonitor.addMonitoredEtherPublicKey(etherPublicKey);
-    }
+  /***
+   * Start watching the pay-in addresses added while database notifications were missed
+   * @throws SQLException
+   */
+  private void resyncAddresses() throws SQLException {
+    new InvestorBootstrap(databaseSource, userService, bitcoinMonitor, ethereumMonitor,
+        new DerivedAddressStore(databaseSource, MODUM_TOKENAPP_CREATE_SCHEMA),
+        Runtime.getRuntime().availableProcessors()).resync();
   }
 
-  private void initExchangeRateService() {
+  private void initExchangeRateService() throws SQLException {
     this.fxService = new ExchangeRateService(databaseSource);
   }
 
@@ -172,18 +242,43 @@ public class Application {
       });
     }
 
+    TotalsPublisher totalsPublisher = new TotalsPublisher(totalsLedger, MODUM_TOKENAPP_START_AMOUNT);
     get("/", (req, res) -> {
-      if (MODUM_TOKENAPP_ENABLE_CORS) {
-        res.header("Access-Control-Allow-Origin", "*");
-        res.header("Access-Control-Request-Method", "*");
-        res.header("Access-Control-Allow-Headers", "*");
-      }
-      return getTotalRaisedUSD().toString();
+      addCorsHeaders(res);
+      return totalsPublisher.serveTotal(req, res);
+    });
+    get("/events", (req, res) -> {
+      addCorsHeaders(res);
+      return totalsPublisher.serveEvents(req, res);
+    });
+
+    PayInApi payInApi = new PayInApi(totalsLedger, payInIndex, userService,
+        MODUM_TOKENAPP_START_AMOUNT, MODUM_TOKENAPP_ADMIN_TOKEN);
+    get("/totals", (req, res) -> {
+      addCorsHeaders(res);
+      return payInApi.serveTotals(req, res);
+    });
+    if (payInApi.isAdminEnabled()) {
+      before("/addresses/*", payInApi::authorize);
+      before("/payins", payInApi::authorize);
+      get("/addresses/:address", payInApi::serveAddress);
+      get("/payins", payInApi::servePayIns);
+    }
+
+    if (payInApi.isAdminEnabled())
+      before("/metrics", payInApi::authorize);
+    get("/metrics", (req, res) -> {
+      res.type("text/plain; version=0.0.4");
+      return Metrics.scrape();
     });
   }
 
-  private Long getTotalRaisedUSD() {
-    return ethereumMonitor.getTotalRaisedUSD() + bitcoinMonitor.getTotalRaisedUSD() + MODUM_TOKENAPP_START_AMOUNT;
+  private void addCorsHeaders(Response res) {
+    if (MODUM_TOKENAPP_ENABLE_CORS) {
+      res.header("Access-Control-Allow-Origin", "*");
+      res.header("Access-Control-Request-Method", "*");
+      res.header("Access-Control-Allow-Headers", "*");
+    }
   }
 
 }
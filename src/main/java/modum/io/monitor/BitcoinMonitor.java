@@ -1,9 +1,8 @@
 package modum.io.monitor;
 
-import static org.bitcoinj.core.TransactionConfidence.ConfidenceType.*;
-
 import com.subgraph.orchid.encoders.Hex;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigDecimal;
 import java.math.BigInteger;
@@ -12,22 +11,23 @@ import java.nio.file.Files;
 import java.sql.SQLException;
 import java.time.Instant;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 import org.bitcoinj.core.Address;
-import org.bitcoinj.core.Block;
 import org.bitcoinj.core.BlockChain;
 import org.bitcoinj.core.CheckpointManager;
 import org.bitcoinj.core.Context;
 import org.bitcoinj.core.ECKey;
 import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.StoredBlock;
-import org.bitcoinj.core.TransactionConfidence;
-import org.bitcoinj.core.TransactionConfidence.Listener;
+import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionOutput;
 import org.bitcoinj.core.listeners.DownloadProgressTracker;
 import org.bitcoinj.net.discovery.DnsDiscovery;
@@ -35,54 +35,112 @@ import org.bitcoinj.params.MainNetParams;
 import org.bitcoinj.params.TestNet3Params;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.SPVBlockStore;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.UnreadableWalletException;
 import org.bitcoinj.wallet.Wallet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Bitconin SPV wallet that scans the blockchain transactions for watched addresses.
- * Keeps track of the total amount in USD send to any watched address.
+ * Adds the amount in USD send to any watched address to the totals ledger.
  */
 public class BitcoinMonitor {
   private final static Logger LOG = LoggerFactory.getLogger(BitcoinMonitor.class);
+  private final static int BLOCK_TIME_CACHE_SIZE = 10_000;
 
   private final Context context;
   private final NetworkParameters chainParams;
   private final Wallet wallet;
   private final PeerGroup peerGroup;
   private final SPVBlockStore blockStore;
+  private final File walletFile;
   private final ExchangeRateService fxService;
   private final UserService userService;
   private final MailService mailService;
-  private Set<TransactionOutput> processedUTXOs = new HashSet<>();
-  private Map<String, String> monitoredAddresses = new HashMap<>(); // public key -> address
-  private BigDecimal totalRaised = BigDecimal.ZERO;
+  private final TotalsLedger totalsLedger;
+  private final PayInIndex payInIndex;
+  private final OutpointIndex processedOutpoints;
+  private final PendingTransactionTracker pendingTransactions;
+  private final BlockTimeCache blockTimes = new BlockTimeCache(BLOCK_TIME_CACHE_SIZE);
+  private final Map<String, String> monitoredAddresses = new ConcurrentHashMap<>(); // address -> public key
+  private final Set<String> monitoredPublicKeys = ConcurrentHashMap.newKeySet();
+  private volatile double downloadPercent = 0.0;
 
   public BitcoinMonitor(UserService userService, MailService mailService,
-      ExchangeRateService fxService,
-      String bitcoinNetwork) throws Exception {
+      ExchangeRateService fxService, TotalsLedger totalsLedger, PayInIndex payInIndex,
+      String bitcoinNetwork, String dataDirectory, Double bloomFalsePositiveRate,
+      long pendingExpiryHours) throws Exception {
     this.fxService = fxService;
+    this.totalsLedger = totalsLedger;
+    this.payInIndex = payInIndex;
     this.userService = userService;
     this.mailService = mailService;
 
     chainParams = BitcoinNet.getNetworkParams(BitcoinNet.of(bitcoinNetwork));
     context = new Context(chainParams);
-    File blockStoreFile = Files.createTempFile("chain", "tmp").toFile();
-    blockStoreFile.deleteOnExit();
-    if (blockStoreFile.exists()) blockStoreFile.delete();
-    wallet = new Wallet(context);
-    blockStore = new SPVBlockStore(chainParams, blockStoreFile);
-    if (chainParams.equals(MainNetParams.get())) {
-      InputStream checkPoints = ClassLoader.getSystemResourceAsStream("checkpoints.txt");
-      CheckpointManager.checkpoint(chainParams, checkPoints, blockStore, 1498867200L);
-    } else if (chainParams.equals(TestNet3Params.get())) {
-      InputStream checkPoints = ClassLoader.getSystemResourceAsStream("checkpoints-testnet.txt");
-      CheckpointManager.checkpoint(chainParams, checkPoints, blockStore, 1498867200L);
+    if (dataDirectory != null) {
+      File directory = new File(dataDirectory);
+      if (!directory.isDirectory() && !directory.mkdirs())
+        throw new IllegalArgumentException("Cannot create bitcoin data directory " + dataDirectory);
+      String network = BitcoinNet.of(bitcoinNetwork).toString();
+      walletFile = new File(directory, network + ".wallet");
+      File blockStoreFile = new File(directory, network + ".spvchain");
+
+      Wallet loadedWallet = null;
+      SPVBlockStore loadedBlockStore = null;
+      if (walletFile.exists() && blockStoreFile.exists()) {
+        try {
+          loadedWallet = Wallet.loadFromFile(walletFile);
+          loadedBlockStore = new SPVBlockStore(chainParams, blockStoreFile);
+          rewindToWallet(loadedBlockStore, loadedWallet);
+          LOG.info("Loaded bitcoin wallet and block store from {}, chain head at height {}",
+              directory, loadedBlockStore.getChainHead().getHeight());
+        } catch (UnreadableWalletException | BlockStoreException e) {
+          LOG.warn("Could not load bitcoin wallet and block store from {}, "
+              + "bootstrapping from checkpoints. {}", directory, e.getMessage());
+          if (loadedBlockStore != null)
+            loadedBlockStore.close();
+          loadedBlockStore = null;
+        }
+      }
+      if (loadedBlockStore == null) {
+        // Wallet and block store must always be at the same block, so both are started over
+        Files.deleteIfExists(walletFile.toPath());
+        Files.deleteIfExists(blockStoreFile.toPath());
+        loadedWallet = new Wallet(context);
+        loadedBlockStore = new SPVBlockStore(chainParams, blockStoreFile);
+        checkpoint(loadedBlockStore);
+      }
+      wallet = loadedWallet;
+      blockStore = loadedBlockStore;
+      wallet.autosaveToFile(walletFile, 5, TimeUnit.SECONDS, null);
+      processedOutpoints = new OutpointIndex(new File(directory, network + ".outpoints"));
+    } else {
+      File blockStoreFile = Files.createTempFile("chain", "tmp").toFile();
+      blockStoreFile.deleteOnExit();
+      if (blockStoreFile.exists()) blockStoreFile.delete();
+      walletFile = null;
+      wallet = new Wallet(context);
+      blockStore = new SPVBlockStore(chainParams, blockStoreFile);
+      checkpoint(blockStore);
+      processedOutpoints = new OutpointIndex(null);
     }
     BlockChain blockChain = new BlockChain(context, blockStore);
+    pendingTransactions = new PendingTransactionTracker(wallet::getTransaction, utxo -> {
+      if (!isProcessed(utxo))
+        coinsReceived(utxo);
+    }, TimeUnit.HOURS.toSeconds(pendingExpiryHours));
+    blockChain.addNewBestBlockListener(block -> pendingTransactions.checkPending());
+    // Runs on the chain thread. Coins received events run on the user thread, so they may be
+    // handled before the block is cached here; getBlockTime then reads the block store.
+    blockChain.addNewBestBlockListener(Threading.SAME_THREAD,
+        block -> blockTimes.put(block.getHeader().getHash(), block.getHeader().getTimeSeconds()));
     peerGroup = new PeerGroup(context, blockChain);
     blockChain.addWallet(wallet);
     peerGroup.addWallet(wallet);
+    if (bloomFalsePositiveRate != null)
+      peerGroup.setBloomFilterFalsePositiveRate(bloomFalsePositiveRate);
 
     // Regtest has no peer-to-peer functionality
     if (chainParams.equals(MainNetParams.get())) {
@@ -99,37 +157,134 @@ public class BitcoinMonitor {
     }
 
     addCoinsReceivedListener();
+
+    Metrics.gauge("bitcoin_chain_height", "Height of the local bitcoin block chain",
+        blockChain::getBestChainHeight);
+    Metrics.gauge("bitcoin_peer_height", "Most common chain height of the bitcoin peers",
+        peerGroup::getMostCommonChainHeight);
+    Metrics.gauge("bitcoin_block_lag", "Bitcoin blocks behind the peers",
+        () -> Math.max(peerGroup.getMostCommonChainHeight() - blockChain.getBestChainHeight(), 0));
+    Metrics.gauge("bitcoin_block_age_seconds", "Age of the head of the local bitcoin block chain",
+        () -> Instant.now().getEpochSecond()
+            - blockChain.getChainHead().getHeader().getTimeSeconds());
+    Metrics.gauge("bitcoin_peers", "Connected bitcoin peers", peerGroup::numConnectedPeers);
+    Metrics.gauge("bitcoin_download_percent", "Progress of the initial block chain download",
+        () -> downloadPercent);
+    Metrics.gauge("bitcoin_pending_transactions",
+        "Pending transactions paying to watched addresses", this::getPendingTransactionCount);
+  }
+
+  private void checkpoint(SPVBlockStore store) throws IOException, BlockStoreException {
+    if (chainParams.equals(MainNetParams.get())) {
+      InputStream checkPoints = ClassLoader.getSystemResourceAsStream("checkpoints.txt");
+      CheckpointManager.checkpoint(chainParams, checkPoints, store, 1498867200L);
+    } else if (chainParams.equals(TestNet3Params.get())) {
+      InputStream checkPoints = ClassLoader.getSystemResourceAsStream("checkpoints-testnet.txt");
+      CheckpointManager.checkpoint(chainParams, checkPoints, store, 1498867200L);
+    }
+  }
+
+  /**
+   * The wallet is saved with a delay, so it can be behind the block store. Resets the chain head
+   * to the last block the wallet has seen, so no transactions are missed.
+   */
+  private static void rewindToWallet(SPVBlockStore store, Wallet wallet)
+      throws BlockStoreException {
+    if (wallet.getLastBlockSeenHash() == null)
+      throw new BlockStoreException("Wallet has not seen any block yet");
+    StoredBlock walletHead = store.get(wallet.getLastBlockSeenHash());
+    if (walletHead == null)
+      throw new BlockStoreException("Last block seen by wallet is not in block store");
+    if (walletHead.getHeight() < store.getChainHead().getHeight()) {
+      LOG.info("Rewinding bitcoin block store from height {} to wallet height {}",
+          store.getChainHead().getHeight(), walletHead.getHeight());
+      store.setChainHead(walletHead);
+    }
+  }
+
+  /**
+   * Add public keys we want to monitor. The addresses are registered with the wallet in a single
+   * call, so the peer group recalculates and sends its bloom filter only once.
+   * @param publicKeys Bitcoin public keys as hex string, with the timestamp in seconds when each
+   * key was created
+   */
+  public void addMonitoredPublicKeys(Map<String, Long> publicKeys) {
+    if (publicKeys.isEmpty())
+      return;
+    Map<String, Address> addresses = new ConcurrentHashMap<>();
+    publicKeys.keySet().parallelStream().forEach(publicKey -> {
+      try {
+        addresses.put(publicKey, deriveAddress(publicKey));
+      } catch (RuntimeException e) {
+        LOG.error("Invalid Bitcoin public key {}. {}", publicKey, e.getMessage());
+      }
+    });
+    long creationTime = publicKeys.values().stream().mapToLong(Long::longValue).min().getAsLong();
+    addMonitoredAddresses(addresses, creationTime);
+  }
+
+  /**
+   * Add addresses we want to monitor, which were already derived from their public keys. May be
+   * called from any thread, the bitcoinj context is propagated before the wallet is changed.
+   * @param addresses Bitcoin public key as hex string -> address
+   * @param creationTime The timestamp in seconds when the oldest of the keys was created
+   */
+  public void addMonitoredAddresses(Map<String, Address> addresses, long creationTime) {
+    if (addresses.isEmpty())
+      return;
+    Context.propagate(context);
+    List<Address> newAddresses = addresses.values().stream()
+        .filter(address -> !wallet.isAddressWatched(address))
+        .collect(Collectors.toList());
+    if (!newAddresses.isEmpty()) {
+      wallet.addWatchedAddresses(newAddresses, creationTime);
+    }
+    addresses.forEach((publicKey, address) -> {
+      monitoredAddresses.put(address.toBase58(), publicKey);
+      monitoredPublicKeys.add(publicKey);
+    });
+    LOG.info("Add {} monitored Bitcoin Addresses, {} of them new", addresses.size(),
+        newAddresses.size());
   }
 
   /**
-   * Add a public key we want to monitor
    * @param publicKey Bitcoin public key as hex string
-   * @param timestamp Timestamp in seconds when this key was created
+   * @return True if the address of the key is monitored
    */
-  public void addMonitoredPublicKey(String publicKey, long timestamp) {
-    final Address address = ECKey.fromPublicOnly(Hex.decode(publicKey))
-        .toAddress(chainParams);
-    final String addressString = address.toBase58();
-    LOG.info("Add monitored Bitcoin Address: {}", addressString);
-    wallet.addWatchedAddress(address, timestamp);
-    monitoredAddresses.put(addressString, publicKey);
+  public boolean isMonitoredPublicKey(String publicKey) {
+    return monitoredPublicKeys.contains(publicKey);
   }
 
-  public Long getTotalRaisedUSD() {
-    return totalRaised.setScale(0, BigDecimal.ROUND_UP).longValue();
+  /**
+   * @param publicKey Bitcoin public key as hex string
+   * @return The pay-to-public-key-hash address of the key
+   */
+  public Address deriveAddress(String publicKey) {
+    return deriveAddress(publicKey, chainParams);
   }
 
-  public void start() throws InterruptedException {
+  static Address deriveAddress(String publicKey, NetworkParameters chainParams) {
+    return ECKey.fromPublicOnly(Hex.decode(publicKey)).toAddress(chainParams);
+  }
+
+  public void start() throws InterruptedException, SQLException {
+    totalsLedger.set("BTC", userService.getTotalPayInUSD("BTC"));
+
+    // Transactions already in a persisted wallet don't trigger the coins received listener again
+    wallet.getTransactions(false).forEach(this::processTransaction);
+
     peerGroup.start();
 
     // Download block chain (blocking)
     final DownloadProgressTracker downloadListener = new DownloadProgressTracker() {
       @Override
       protected void doneDownload() {
+        downloadPercent = 100.0;
         LOG.info("Download done");
       }
       @Override
       protected void progress(double pct, int blocksSoFar, Date date) {
+        downloadPercent = pct;
         LOG.info("Downloading chain: {}%", (int) pct);
       }
     };
@@ -138,49 +293,103 @@ public class BitcoinMonitor {
     downloadListener.await();
   }
 
+  /**
+   * @return Number of pending transactions paying to watched addresses
+   */
+  public int getPendingTransactionCount() {
+    return pendingTransactions.getPendingCount();
+  }
+
+  /**
+   * @return Sum of all watched outputs of pending transactions in satoshi
+   */
+  public long getPendingSatoshi() {
+    return pendingTransactions.getPendingSatoshi();
+  }
+
+  public NetworkParameters getNetworkParameters() {
+    return chainParams;
+  }
+
+  public void stop() {
+    peerGroup.stop();
+    if (walletFile != null)
+      wallet.shutdownAutosaveAndWait();
+    processedOutpoints.close();
+    try {
+      blockStore.close();
+    } catch (BlockStoreException e) {
+      LOG.error("Could not close bitcoin block store. {} {}", e.getMessage(), e.getCause());
+    }
+  }
+
   /**
    * Listens for changes to watched addresses
    */
   private void addCoinsReceivedListener() {
     wallet.addCoinsReceivedEventListener((wallet1, tx, prevBalance, newBalance) -> {
       Context.propagate(context);
-      // Check outputs
-      tx.getOutputs().forEach(utxo -> {
-        // If not already processed and this output sends to one of our watched addresses
-        if (!processedUTXOs.contains(utxo) && utxo.getScriptPubKey().isSentToAddress()) {
-          Address address = utxo.getAddressFromP2PKHScript(chainParams);
-          if (wallet1.getWatchedAddresses().contains(address)) {
-
-            // If the confidence is already BUILDING (1 block or more on best chain)
-            // we have a hit
-            if (BitcoinUtils.isBuilding(tx)) {
-              coinsReceived(utxo);
-
-              // If pending or unknown we add a confidence changed listener and wait for block inclusion
-            } else if (BitcoinUtils.isPending(tx) || BitcoinUtils.isUnknown(tx)) {
-              LOG.info("Pending: {} satoshi received in {}", utxo.getValue(), tx.getHashAsString());
-              Listener listener = new Listener() {
-                @Override
-                public void onConfidenceChanged(TransactionConfidence confidence, ChangeReason reason) {
-                  if (!processedUTXOs.contains(utxo)) {
-                    if (confidence.getConfidenceType().equals(BUILDING)) {
-                      coinsReceived(utxo);
-                      tx.getConfidence().removeEventListener(this);
-                    } else if (confidence.getConfidenceType().equals(DEAD) || confidence
-                        .getConfidenceType().equals(IN_CONFLICT)) {
-                      tx.getConfidence().removeEventListener(this);
-                    }
-                  }
-                }
-              };
-              tx.getConfidence().addEventListener(listener);
-            }
+      processTransaction(tx);
+    });
+  }
+
+  /**
+   * Checks the outputs of a transaction for payments to watched addresses
+   */
+  private void processTransaction(Transaction tx) {
+    tx.getOutputs().forEach(utxo -> {
+      // If not already processed and this output sends to one of our watched addresses
+      if (!isProcessed(utxo) && utxo.getScriptPubKey().isSentToAddress()) {
+        Address address = utxo.getAddressFromP2PKHScript(chainParams);
+        if (wallet.isAddressWatched(address)) {
+
+          // If the confidence is already BUILDING (1 block or more on best chain)
+          // we have a hit
+          if (BitcoinUtils.isBuilding(tx)) {
+            coinsReceived(utxo);
+
+            // If pending or unknown the tracker waits for block inclusion
+          } else if (BitcoinUtils.isPending(tx) || BitcoinUtils.isUnknown(tx)) {
+            LOG.info("Pending: {} satoshi received in {}", utxo.getValue(), tx.getHashAsString());
+            pendingTransactions.track(utxo);
           }
         }
-      });
+      }
     });
   }
 
+  /**
+   * @return The block time in seconds, or null if the block is unknown
+   */
+  private Long getBlockTime(Sha256Hash blockHash) {
+    Long time = blockTimes.get(blockHash);
+    if (time == null) {
+      try {
+        StoredBlock block = blockStore.get(blockHash);
+        if (block != null) {
+          time = block.getHeader().getTimeSeconds();
+          blockTimes.put(blockHash, time);
+        }
+      } catch (BlockStoreException e) {
+        return null; // This can happen if the transaction was seen in a side-chain
+      }
+    }
+    return time;
+  }
+
+  private boolean isProcessed(TransactionOutput utxo) {
+    return processedOutpoints.contains(utxo.getParentTransactionHash().getBytes(), utxo.getIndex());
+  }
+
+  private void markProcessed(TransactionOutput utxo) {
+    try {
+      processedOutpoints.add(utxo.getParentTransactionHash().getBytes(), utxo.getIndex());
+    } catch (IOException e) {
+      LOG.error("Could not store processed outpoint {}:{}. {} {}",
+          utxo.getParentTransactionHash(), utxo.getIndex(), e.getMessage(), e.getCause());
+    }
+  }
+
   /**
    * We have some funds send to us. This is called live or when catching-up at startup.
    * @param utxo The transaction output we received
@@ -191,17 +400,9 @@ public class BitcoinMonitor {
 
     // Retrieve the timestamp from the first block that this transaction was seen in
     long timestamp = utxo.getParentTransaction().getAppearsInHashes().keySet().stream()
-        .map((blockHash) -> {
-          try {
-            return blockStore.get(blockHash);
-          } catch (BlockStoreException e) {
-            return null; // This can happen if the transaction was seen in a side-chain
-          }
-        })
+        .map(this::getBlockTime)
         .filter(Objects::nonNull)
-        .map(StoredBlock::getHeader)
-        .map(Block::getTime)
-        .mapToLong(date -> (date.getTime() / 1000L))
+        .mapToLong(Long::longValue)
         .min().orElse(0L);
     if (timestamp == 0L) {
       LOG.error("Could not get time for utxo in tx {} with satoshi value {}",
@@ -218,9 +419,7 @@ public class BitcoinMonitor {
           address, satoshi, e.getMessage(), e.getCause());
       return;
     }
-    BigDecimal usdReceived = BigDecimal.valueOf(satoshi)
-        .multiply(USDperBTC)
-        .divide(BigDecimal.valueOf(100_000_000L), BigDecimal.ROUND_DOWN);
+    BigDecimal usdReceived = satoshiToUSD(satoshi, USDperBTC);
 
     // Fetch email
     String publicKey = monitoredAddresses.get(address);
@@ -235,21 +434,41 @@ public class BitcoinMonitor {
 
     final String identifier = utxo.getParentTransaction().getHashAsString() + "_"
         + String.valueOf(utxo.getIndex());
-    BigInteger value = new BigInteger(String.valueOf(satoshi));
+    BigInteger value = BigInteger.valueOf(satoshi);
     Instant blockTime = Instant.ofEpochSecond(timestamp);
-    boolean inserted = false;
-    try {
-      inserted = userService.savePayIn(identifier, "BTC", value, USDperBTC, usdReceived, email);
-    } catch (SQLException e) {
-      LOG.error("Could not save payin: {} / {} USD / {} FX / {} / Time: {] / Address: {}",
-          utxo.getValue().toFriendlyString(),
-          usdReceived,
-          USDperBTC,
-          email,
-          timestamp,
-          address);
-    }
+    final String fetchedEmail = email;
+    final BigDecimal fetchedUSDperBTC = USDperBTC;
+    userService.savePayInAsync(identifier, "BTC", value, USDperBTC, usdReceived, email, address)
+        .whenComplete((inserted, error) -> {
+          boolean saved = error == null;
+          if (!saved) {
+            LOG.error("Could not save payin: {} / {} USD / {} FX / {} / Time: {] / Address: {}",
+                utxo.getValue().toFriendlyString(),
+                usdReceived,
+                fetchedUSDperBTC,
+                fetchedEmail,
+                timestamp,
+                address);
+          }
+          payInSaved(utxo, saved && inserted, saved, usdReceived, fetchedUSDperBTC, fetchedEmail,
+              timestamp, address);
+        });
+  }
+
+  /**
+   * @return The USD value of the amount, rounded down to the scale of the rate
+   */
+  static BigDecimal satoshiToUSD(long satoshi, BigDecimal USDperBTC) {
+    return BigDecimal.valueOf(satoshi)
+        .multiply(USDperBTC)
+        .divide(BigDecimal.valueOf(100_000_000L), BigDecimal.ROUND_DOWN);
+  }
 
+  /**
+   * Completes a pay-in once the pay-in writer has saved it
+   */
+  private void payInSaved(TransactionOutput utxo, boolean inserted, boolean saved,
+      BigDecimal usdReceived, BigDecimal USDperBTC, String email, long timestamp, String address) {
     if (inserted) {
       final String blockChainInfoLink = "https://blockchain.info/tx/" + utxo.getParentTransaction().getHashAsString();
       mailService.sendConfirmationMail(email, utxo.getValue().toFriendlyString(), blockChainInfoLink);
@@ -264,8 +483,15 @@ public class BitcoinMonitor {
         timestamp,
         address);
 
-    processedUTXOs.add(utxo);
-    totalRaised = totalRaised.add(usdReceived);
+    // Only mark as processed when saved, so a failed pay-in is retried after a restart
+    if (saved)
+      markProcessed(utxo);
+
+    // Pay-ins saved by a previous run are already part of the total loaded at start
+    if (inserted || !saved) {
+      totalsLedger.add("BTC", usdReceived);
+      payInIndex.add(address, "BTC", BigInteger.valueOf(utxo.getValue().getValue()), usdReceived);
+    }
   }
 
 }
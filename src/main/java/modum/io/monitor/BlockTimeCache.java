@@ -0,0 +1,32 @@
+package modum.io.monitor;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.bitcoinj.core.Sha256Hash;
+
+/**
+ * Bounded least-recently-used cache of bitcoin block hash -> block time in seconds.
+ */
+class BlockTimeCache {
+  private final Map<Sha256Hash, Long> blockTimes;
+
+  BlockTimeCache(int capacity) {
+    this.blockTimes = new LinkedHashMap<Sha256Hash, Long>(capacity, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Long> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  synchronized void put(Sha256Hash blockHash, long time) {
+    blockTimes.put(blockHash, time);
+  }
+
+  /**
+   * @return The block time in seconds, or null if the block is not cached
+   */
+  synchronized Long get(Sha256Hash blockHash) {
+    return blockTimes.get(blockHash);
+  }
+}
@@ -0,0 +1,87 @@
+package modum.io.monitor;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.Optional;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores the highest fully processed block per blockchain in the table 'scan_checkpoint',
+ * so the monitors can resume scanning after a restart instead of starting over.
+ * Without the table, no checkpoints are kept and the monitors start from their start block.
+ */
+public class CheckpointService {
+  private final static Logger LOG = LoggerFactory.getLogger(CheckpointService.class);
+  private final DataSource dataSource;
+  private final boolean hasTable;
+
+  /**
+   * @param createSchema Whether to create the table if it is missing
+   */
+  public CheckpointService(DataSource dataSource, boolean createSchema) throws SQLException {
+    this.dataSource = dataSource;
+    if (createSchema)
+      createTable();
+    this.hasTable = createSchema || DatabaseSchema.hasTable(dataSource, "scan_checkpoint");
+    if (!hasTable)
+      LOG.warn("Table scan_checkpoint is missing, scans start from the start block after a "
+          + "restart");
+  }
+
+  public Optional<Long> getCheckpoint(String chain) throws SQLException {
+    if (!hasTable)
+      return Optional.empty();
+    try (
+        Connection conn = dataSource.getConnection();
+        PreparedStatement preparedStatement = conn.prepareStatement(""
+            + "SELECT block_nr FROM scan_checkpoint WHERE chain = ?");
+    ) {
+      preparedStatement.setString(1, chain);
+      try (ResultSet rs = preparedStatement.executeQuery()) {
+        if (rs.next()) {
+          return Optional.of(rs.getLong("block_nr"));
+        } else {
+          return Optional.empty();
+        }
+      }
+    }
+  }
+
+  public void saveCheckpoint(String chain, long blockNumber) throws SQLException {
+    if (!hasTable)
+      return;
+    try (
+        Connection conn = dataSource.getConnection();
+        PreparedStatement preparedStatement = conn.prepareStatement(""
+            + "INSERT INTO scan_checkpoint (chain, block_nr, update_date) VALUES (?, ?, ?) "
+            + "ON CONFLICT (chain) DO UPDATE "
+            + "SET block_nr = EXCLUDED.block_nr, update_date = EXCLUDED.update_date");
+    ) {
+      preparedStatement.setString(1, chain);
+      preparedStatement.setLong(2, blockNumber);
+      preparedStatement.setTimestamp(3, Timestamp.from(Instant.now()));
+      preparedStatement.executeUpdate();
+    }
+  }
+
+  private void createTable() throws SQLException {
+    try (
+        Connection conn = dataSource.getConnection();
+        Statement statement = conn.createStatement();
+    ) {
+      statement.execute(""
+          + "CREATE TABLE IF NOT EXISTS scan_checkpoint (\n"
+          + "  chain VARCHAR(16) PRIMARY KEY,\n"
+          + "  block_nr BIGINT NOT NULL,\n"
+          + "  update_date TIMESTAMP NOT NULL\n"
+          + ")");
+    }
+  }
+}
@@ -0,0 +1,100 @@
+package modum.io.monitor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import javax.activation.DataHandler;
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.internet.PreencodedMimeBodyPart;
+import javax.mail.util.ByteArrayDataSource;
+import org.springframework.mail.javamail.MimeMessageHelper;
+import org.thymeleaf.TemplateEngine;
+import org.thymeleaf.context.Context;
+import org.thymeleaf.templateresolver.ClassLoaderTemplateResolver;
+import spark.utils.IOUtils;
+
+/**
+ * The confirmation mail, rendered once by Thymeleaf with placeholders for the amount and the link.
+ * Per mail only the escaped amount and link are filled in between the static fragments, and the
+ * logo is attached from its cached base64 encoding.
+ */
+class ConfirmationMailTemplate {
+  final static String TEMPLATE = "templates/confirmation_email.html";
+  final static String LOGO = "/templates/modum_logo.png";
+  private final static String AMOUNT_PLACEHOLDER = "@@amount@@";
+  private final static String LINK_PLACEHOLDER = "@@link@@";
+
+  // Static fragments and placeholders in order of appearance, fragments.size() == slots.size() + 1
+  private final List<String> fragments = new ArrayList<>();
+  private final List<String> slots = new ArrayList<>();
+  private final int renderedLength;
+  private final byte[] encodedLogo;
+
+  ConfirmationMailTemplate() throws IOException {
+    TemplateEngine templateEngine = new TemplateEngine();
+    templateEngine.setTemplateResolver(new ClassLoaderTemplateResolver());
+    Context context = new Context();
+    context.setVariable("amount", AMOUNT_PLACEHOLDER);
+    context.setVariable("link", LINK_PLACEHOLDER);
+    String rendered = templateEngine.process(TEMPLATE, context);
+    renderedLength = rendered.length();
+
+    int start = 0;
+    while (true) {
+      int amount = rendered.indexOf(AMOUNT_PLACEHOLDER, start);
+      int link = rendered.indexOf(LINK_PLACEHOLDER, start);
+      int next = amount < 0 ? link : link < 0 ? amount : Math.min(amount, link);
+      if (next < 0)
+        break;
+      String slot = next == amount ? AMOUNT_PLACEHOLDER : LINK_PLACEHOLDER;
+      fragments.add(rendered.substring(start, next));
+      slots.add(slot);
+      start = next + slot.length();
+    }
+    fragments.add(rendered.substring(start));
+
+    try (InputStream logo = getClass().getResourceAsStream(LOGO)) {
+      encodedLogo = Base64.getMimeEncoder().encode(IOUtils.toByteArray(logo));
+    }
+  }
+
+  String render(String amount, String link) {
+    StringBuilder html = new StringBuilder(renderedLength + 64);
+    for (int i = 0; i < slots.size(); i++) {
+      html.append(fragments.get(i));
+      escape(html, AMOUNT_PLACEHOLDER.equals(slots.get(i)) ? amount : link);
+    }
+    return html.append(fragments.get(slots.size())).toString();
+  }
+
+  void setContent(MimeMessageHelper messageHelper, String amount, String link)
+      throws MessagingException {
+    messageHelper.setText(render(amount, link), true);
+
+    // Same as MimeMessageHelper.addInline, but without encoding the logo again
+    PreencodedMimeBodyPart logo = new PreencodedMimeBodyPart("base64");
+    logo.setDisposition(Part.INLINE);
+    logo.setHeader("Content-ID", "<modumLogo>");
+    logo.setDataHandler(new DataHandler(new ByteArrayDataSource(encodedLogo, "image/png")));
+    messageHelper.getMimeMultipart().addBodyPart(logo);
+  }
+
+  private static void escape(StringBuilder html, String text) {
+    if (text == null)
+      return;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      switch (c) {
+        case '&': html.append("&amp;"); break;
+        case '<': html.append("&lt;"); break;
+        case '>': html.append("&gt;"); break;
+        case '"': html.append("&quot;"); break;
+        case '\'': html.append("&#39;"); break;
+        default: html.append(c);
+      }
+    }
+  }
+}
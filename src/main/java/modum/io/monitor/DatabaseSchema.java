@@ -0,0 +1,46 @@
+package modum.io.monitor;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import javax.sql.DataSource;
+
+/**
+ * Checks for the tables and columns the monitor needs. Tables are only created when
+ * MODUM_TOKENAPP_CREATE_SCHEMA is set, otherwise the services do without the missing parts.
+ */
+final class DatabaseSchema {
+  private DatabaseSchema() {
+  }
+
+  static boolean hasTable(DataSource dataSource, String table) throws SQLException {
+    try (
+        Connection conn = dataSource.getConnection();
+        PreparedStatement preparedStatement = conn.prepareStatement(""
+            + "SELECT 1 FROM information_schema.tables \n"
+            + "WHERE table_schema = current_schema() AND table_name = ?");
+    ) {
+      preparedStatement.setString(1, table);
+      try (ResultSet rs = preparedStatement.executeQuery()) {
+        return rs.next();
+      }
+    }
+  }
+
+  static boolean hasColumn(DataSource dataSource, String table, String column)
+      throws SQLException {
+    try (
+        Connection conn = dataSource.getConnection();
+        PreparedStatement preparedStatement = conn.prepareStatement(""
+            + "SELECT 1 FROM information_schema.columns \n"
+            + "WHERE table_schema = current_schema() AND table_name = ? AND column_name = ?");
+    ) {
+      preparedStatement.setString(1, table);
+      preparedStatement.setString(2, column);
+      try (ResultSet rs = preparedStatement.executeQuery()) {
+        return rs.next();
+      }
+    }
+  }
+}
@@ -6,49 +6,113 @@ import java.util.Map;
 import javax.sql.DataSource;
 
 /***
- * Class that watches the (postgres) database for NOTIFYs of 'ether' and 'bitcoin' and triggers
- * the passed-in actions.
+ * Class that watches the (postgres) database for NOTIFYs of 'ether', 'bitcoin' and
+ * 'exchange_rate' and triggers the passed-in actions. The payloads of 'ether' and 'bitcoin' are
+ * JSON arrays of the new pay-in public keys. After the listener lost its connection,
+ * the resync action is triggered instead.
  */
 public class DatabaseWatcher {
+  // NOTIFY payloads are limited to 8000 bytes, enough for 40 uncompressed public keys
+  private final static int KEYS_PER_NOTIFY = 40;
+
   private PostgresTriggerListener listener;
   private final DataSource dataSource;
 
   DatabaseWatcher(DataSource dataSource, TriggerAction newBitcoinAddress,
-      TriggerAction newEtherAddress, boolean createSchema) throws SQLException {
+      TriggerAction newEtherAddress, TriggerAction newExchangeRate, Runnable resync,
+      boolean createSchema) throws SQLException {
     this.dataSource = dataSource;
     if (createSchema) setUpTrigger();
 
     Map<String, TriggerAction> actionMap = new HashMap<>();
     actionMap.put("bitcoin", newBitcoinAddress);
     actionMap.put("ether", newEtherAddress);
-    listener = new PostgresTriggerListener(dataSource.getConnection(), actionMap);
+    actionMap.put("exchange_rate", newExchangeRate);
+    listener = new PostgresTriggerListener(dataSource, actionMap, resync);
     listener.start();
+
+    Metrics.gauge("trigger_lag_seconds",
+        "Time from receiving a database notification until its action completed",
+        () -> listener.getLagMillis() / 1000.0);
+    Metrics.gauge("trigger_pending", "Database notifications waiting for their action",
+        listener::getPendingCount);
+    Metrics.counter("trigger_reconnects_total", "Reconnects of the database notification listener",
+        listener::getReconnectCount);
   }
 
   void stop() {
     listener.gracefulStop();
   }
 
+  int getReconnectCount() {
+    return listener.getReconnectCount();
+  }
+
+  long getLagMillis() {
+    return listener.getLagMillis();
+  }
+
+  int getPendingCount() {
+    return listener.getPendingCount();
+  }
+
   private void setUpTrigger() throws SQLException {
     try (
         Connection conn = dataSource.getConnection();
         Statement statement = conn.createStatement();
     ) {
+      // One statement assigning keys to many investors sends only a few notifications, each with
+      // a JSON array of the keys that are new in this statement
       statement.execute(""
           + "CREATE OR REPLACE FUNCTION notify_new_payin_address()\n"
           + "RETURNS TRIGGER AS $$\n"
+          + "DECLARE\n"
+          + "  channel TEXT;\n"
+          + "  payload TEXT;\n"
           + "BEGIN\n"
-          + "  PERFORM pg_notify(CAST('bitcoin' AS TEXT),NEW.pay_in_bitcoin_public_key);\n"
-          + "  PERFORM pg_notify(CAST('ether' AS TEXT),NEW.pay_in_ether_public_key);\n"
-          + "  RETURN NEW;\n"
+          + "  FOR channel, payload IN\n"
+          + "    SELECT changed.channel, json_agg(changed.key)::TEXT FROM (\n"
+          + "      SELECT keys.channel, keys.key,\n"
+          + "        (row_number() OVER (PARTITION BY keys.channel) - 1) / " + KEYS_PER_NOTIFY
+          + " AS chunk\n"
+          + "      FROM (\n"
+          + "        (SELECT 'bitcoin' AS channel, pay_in_bitcoin_public_key AS key FROM new_rows\n"
+          + "         EXCEPT SELECT 'bitcoin', pay_in_bitcoin_public_key FROM old_rows)\n"
+          + "        UNION ALL\n"
+          + "        (SELECT 'ether', pay_in_ether_public_key FROM new_rows\n"
+          + "         EXCEPT SELECT 'ether', pay_in_ether_public_key FROM old_rows)\n"
+          + "      ) keys\n"
+          + "      WHERE keys.key IS NOT NULL\n"
+          + "    ) changed\n"
+          + "    GROUP BY changed.channel, changed.chunk\n"
+          + "  LOOP\n"
+          + "    PERFORM pg_notify(channel, payload);\n"
+          + "  END LOOP;\n"
+          + "  RETURN NULL;\n"
           + "END;\n"
           + "$$ LANGUAGE 'plpgsql';");
+      // Transition tables can't be combined with a column list, the function filters unchanged keys
       statement.execute(
           "DROP TRIGGER IF EXISTS notify_new_payin_address ON investor;\n"
               + "CREATE TRIGGER notify_new_payin_address\n"
-              + "  AFTER UPDATE OF pay_in_ether_public_key, pay_in_bitcoin_public_key ON investor\n"
-              + "  FOR EACH ROW\n"
+              + "  AFTER UPDATE ON investor\n"
+              + "  REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows\n"
+              + "  FOR EACH STATEMENT\n"
               + "  EXECUTE PROCEDURE notify_new_payin_address()");
+      statement.execute(""
+          + "CREATE OR REPLACE FUNCTION notify_new_exchange_rate()\n"
+          + "RETURNS TRIGGER AS $$\n"
+          + "BEGIN\n"
+          + "  PERFORM pg_notify(CAST('exchange_rate' AS TEXT), '');\n"
+          + "  RETURN NULL;\n"
+          + "END;\n"
+          + "$$ LANGUAGE 'plpgsql';");
+      statement.execute(
+          "DROP TRIGGER IF EXISTS notify_new_exchange_rate ON exchange_rate;\n"
+              + "CREATE TRIGGER notify_new_exchange_rate\n"
+              + "  AFTER INSERT ON exchange_rate\n"
+              + "  FOR EACH STATEMENT\n"
+              + "  EXECUTE PROCEDURE notify_new_exchange_rate()");
     }
   }
 
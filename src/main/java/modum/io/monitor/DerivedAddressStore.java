@@ -0,0 +1,145 @@
+package modum.io.monitor;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.sql.DataSource;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.util.encoders.Hex;
+
+/**
+ * Cache of the addresses derived from pay-in public keys, in the table 'derived_address', so
+ * restarts don't have to decode every public key again. Entries are keyed by the SHA-256 hash of
+ * the derivation scheme and the public key, and hold the 20 byte address hash. The bitcoin scheme
+ * includes the network, so addresses of another network are never used.
+ *
+ * The table is loaded into memory once. New entries are kept in memory until saved. Without the
+ * table, the addresses are only kept in memory.
+ */
+class DerivedAddressStore {
+  private final static Logger LOG = LoggerFactory.getLogger(DerivedAddressStore.class);
+  final static String ETHER_SCHEME = "ETH";
+  private final static int INSERT_BATCH_SIZE = 1_000;
+
+  private final DataSource dataSource;
+  private final boolean hasTable;
+  private final Map<Sha256Hash, byte[]> addresses = new ConcurrentHashMap<>();
+  private final Map<Sha256Hash, byte[]> unsaved = new ConcurrentHashMap<>();
+
+  /**
+   * @param createSchema Whether to create the table if it is missing
+   */
+  DerivedAddressStore(DataSource dataSource, boolean createSchema) throws SQLException {
+    this.dataSource = dataSource;
+    if (createSchema)
+      createTable();
+    this.hasTable = createSchema || DatabaseSchema.hasTable(dataSource, "derived_address");
+    if (!hasTable)
+      LOG.warn("Table derived_address is missing, public keys are decoded on every start");
+  }
+
+  /**
+   * @return The scheme of the hash160 of bitcoin keys on the network
+   */
+  static String bitcoinScheme(NetworkParameters params) {
+    return "BTC/" + params.getId();
+  }
+
+  /**
+   * Loads all stored addresses into memory
+   */
+  void load() throws SQLException {
+    if (!hasTable)
+      return;
+    try (
+        Connection conn = dataSource.getConnection();
+        PreparedStatement preparedStatement = conn.prepareStatement(""
+            + "SELECT key_hash, address FROM derived_address");
+    ) {
+      conn.setAutoCommit(false); // Required for the fetch size to take effect
+      preparedStatement.setFetchSize(10_000);
+      try (ResultSet rs = preparedStatement.executeQuery()) {
+        while (rs.next()) {
+          addresses.put(Sha256Hash.wrap(rs.getBytes("key_hash")), rs.getBytes("address"));
+        }
+      }
+      conn.commit();
+    }
+  }
+
+  /**
+   * @return The stored address hash, or null if the key was not derived before
+   */
+  byte[] get(String scheme, String publicKey) {
+    return addresses.get(keyHash(scheme, publicKey));
+  }
+
+  void put(String scheme, String publicKey, byte[] address) {
+    Sha256Hash keyHash = keyHash(scheme, publicKey);
+    if (addresses.put(keyHash, address) == null && hasTable)
+      unsaved.put(keyHash, address);
+  }
+
+  int size() {
+    return addresses.size();
+  }
+
+  /**
+   * Writes the addresses added since the last save
+   * @return The number of addresses written
+   */
+  int save() throws SQLException {
+    List<Sha256Hash> keyHashes = new ArrayList<>(unsaved.keySet());
+    if (keyHashes.isEmpty() || !hasTable)
+      return 0;
+    try (
+        Connection conn = dataSource.getConnection();
+        PreparedStatement preparedStatement = conn.prepareStatement(""
+            + "INSERT INTO derived_address (key_hash, address) VALUES (?, ?) "
+            + "ON CONFLICT DO NOTHING");
+    ) {
+      for (int i = 0; i < keyHashes.size(); i++) {
+        preparedStatement.setBytes(1, keyHashes.get(i).getBytes());
+        preparedStatement.setBytes(2, unsaved.get(keyHashes.get(i)));
+        preparedStatement.addBatch();
+        if ((i + 1) % INSERT_BATCH_SIZE == 0 || i == keyHashes.size() - 1)
+          preparedStatement.executeBatch();
+      }
+    }
+    keyHashes.forEach(unsaved::remove);
+    return keyHashes.size();
+  }
+
+  private static Sha256Hash keyHash(String scheme, String publicKey) {
+    byte[] schemeBytes = (scheme + ":").getBytes(UTF_8);
+    byte[] keyBytes = Hex.decode(publicKey);
+    byte[] input = new byte[schemeBytes.length + keyBytes.length];
+    System.arraycopy(schemeBytes, 0, input, 0, schemeBytes.length);
+    System.arraycopy(keyBytes, 0, input, schemeBytes.length, keyBytes.length);
+    return Sha256Hash.of(input);
+  }
+
+  private void createTable() throws SQLException {
+    try (
+        Connection conn = dataSource.getConnection();
+        Statement statement = conn.createStatement();
+    ) {
+      statement.execute(""
+          + "CREATE TABLE IF NOT EXISTS derived_address (\n"
+          + "  key_hash BYTEA PRIMARY KEY,\n"
+          + "  address BYTEA NOT NULL\n"
+          + ")");
+    }
+  }
+}
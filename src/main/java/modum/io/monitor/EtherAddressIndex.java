@@ -0,0 +1,168 @@
+package modum.io.monitor;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Index of the monitored ethereum addresses, mapping each 20-byte address to the public key it
+ * was derived from. Addresses are kept in an open-addressing table of primitive longs, fronted by
+ * a bloom filter, so hex addresses from RPC responses are matched without allocating.
+ *
+ * Lookups are lock-free. Additions are synchronized and publish a slot by writing its public key
+ * last, so readers never see a partially written address. The bloom filter bits are volatile as
+ * well, so a reader never misses an address that was added before its lookup started.
+ */
+class EtherAddressIndex {
+  private final static int INITIAL_CAPACITY = 1024;
+  private final static int BLOOM_BITS_PER_SLOT = 8;
+
+  private volatile Table table = new Table(INITIAL_CAPACITY);
+  private int size = 0;
+
+  /**
+   * @param hexAddress Address as hex string, with or without 0x prefix, in any case
+   * @return The public key of the monitored address, or null if the address is not monitored
+   */
+  String get(String hexAddress) {
+    if (hexAddress == null)
+      return null;
+    int offset = hexAddress.startsWith("0x") || hexAddress.startsWith("0X") ? 2 : 0;
+    if (hexAddress.length() - offset != 40)
+      return null;
+    long k0 = parseHex(hexAddress, offset, 16);
+    long k1 = parseHex(hexAddress, offset + 16, 16);
+    long k2 = parseHex(hexAddress, offset + 32, 8);
+    if ((k0 | k1 | k2) < 0 && !(isHex(hexAddress, offset)))
+      return null;
+    return table.get(k0, k1, k2);
+  }
+
+  boolean contains(String hexAddress) {
+    return get(hexAddress) != null;
+  }
+
+  /**
+   * @param address 20-byte ethereum address
+   * @param publicKey Public key the address was derived from
+   */
+  synchronized void put(byte[] address, String publicKey) {
+    if (address.length != 20)
+      throw new IllegalArgumentException("Ethereum address must be 20 bytes");
+    long k0 = readLong(address, 0, 8);
+    long k1 = readLong(address, 8, 8);
+    long k2 = readLong(address, 16, 4);
+    if (table.put(k0, k1, k2, publicKey))
+      size++;
+    if (size * 2 > table.capacity())
+      table = table.resize(table.capacity() * 2);
+  }
+
+  synchronized int size() {
+    return size;
+  }
+
+  private static long readLong(byte[] bytes, int offset, int length) {
+    long value = 0L;
+    for (int i = offset; i < offset + length; i++) {
+      value = (value << 8) | (bytes[i] & 0xFFL);
+    }
+    return value;
+  }
+
+  /**
+   * @return The parsed value, or -1 if the range contains a non-hex character
+   */
+  private static long parseHex(String s, int offset, int length) {
+    long value = 0L;
+    for (int i = offset; i < offset + length; i++) {
+      int digit = Character.digit(s.charAt(i), 16);
+      if (digit < 0)
+        return -1L;
+      value = (value << 4) | digit;
+    }
+    return value;
+  }
+
+  private static boolean isHex(String s, int offset) {
+    for (int i = offset; i < s.length(); i++) {
+      if (Character.digit(s.charAt(i), 16) < 0)
+        return false;
+    }
+    return true;
+  }
+
+  private static final class Table {
+    private final long[] keys; // 3 longs per slot: address bytes 0-7, 8-15 and 16-19
+    private final AtomicReferenceArray<String> publicKeys; // null marks an empty slot
+    private final AtomicLongArray bloom;
+    private final int mask;
+    private final int bloomMask;
+
+    private Table(int capacity) {
+      keys = new long[capacity * 3];
+      publicKeys = new AtomicReferenceArray<>(capacity);
+      bloom = new AtomicLongArray(capacity * BLOOM_BITS_PER_SLOT / 64);
+      mask = capacity - 1;
+      bloomMask = capacity * BLOOM_BITS_PER_SLOT - 1;
+    }
+
+    private int capacity() {
+      return mask + 1;
+    }
+
+    private String get(long k0, long k1, long k2) {
+      // Addresses are hashes already, so their bits can be used directly
+      if (!bloomContains(k1) || !bloomContains(k2 ^ k0))
+        return null;
+      for (int slot = (int) k0 & mask; ; slot = (slot + 1) & mask) {
+        String publicKey = publicKeys.get(slot);
+        if (publicKey == null)
+          return null;
+        if (keys[slot * 3] == k0 && keys[slot * 3 + 1] == k1 && keys[slot * 3 + 2] == k2)
+          return publicKey;
+      }
+    }
+
+    /**
+     * @return true if the address was added, false if it replaced an existing entry
+     */
+    private boolean put(long k0, long k1, long k2, String publicKey) {
+      for (int slot = (int) k0 & mask; ; slot = (slot + 1) & mask) {
+        if (publicKeys.get(slot) == null) {
+          keys[slot * 3] = k0;
+          keys[slot * 3 + 1] = k1;
+          keys[slot * 3 + 2] = k2;
+          bloomAdd(k1);
+          bloomAdd(k2 ^ k0);
+          publicKeys.set(slot, publicKey);
+          return true;
+        }
+        if (keys[slot * 3] == k0 && keys[slot * 3 + 1] == k1 && keys[slot * 3 + 2] == k2) {
+          publicKeys.set(slot, publicKey);
+          return false;
+        }
+      }
+    }
+
+    private Table resize(int capacity) {
+      Table resized = new Table(capacity);
+      for (int slot = 0; slot <= mask; slot++) {
+        String publicKey = publicKeys.get(slot);
+        if (publicKey != null)
+          resized.put(keys[slot * 3], keys[slot * 3 + 1], keys[slot * 3 + 2], publicKey);
+      }
+      return resized;
+    }
+
+    private boolean bloomContains(long hash) {
+      int bit = (int) hash & bloomMask;
+      return (bloom.get(bit >>> 6) & (1L << bit)) != 0;
+    }
+
+    private void bloomAdd(long hash) {
+      int bit = (int) hash & bloomMask;
+      // Only called by the synchronized put, so there are no concurrent writers
+      bloom.set(bit >>> 6, bloom.get(bit >>> 6) | 1L << bit);
+    }
+  }
+}
@@ -0,0 +1,73 @@
+package modum.io.monitor;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.web3j.protocol.ObjectMapperFactory;
+import org.web3j.protocol.core.DefaultBlockParameterNumber;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.methods.response.EthBlock;
+import org.web3j.protocol.core.methods.response.EthBlock.Block;
+
+/**
+ * Fetches ranges of full blocks (including transactions) from an ethereum full-node.
+ * All eth_getBlockByNumber calls of a range are sent as a single JSON-RPC batch request,
+ * so a range costs one round trip instead of one per block.
+ */
+class EthereumBlockFetcher {
+  private final static Metrics.Timer BATCH_TIMER =
+      MeteredWeb3jService.timer("batch_eth_getBlockByNumber");
+  private final static Metrics.Counter BATCH_ERRORS =
+      MeteredWeb3jService.errorCounter("batch_eth_getBlockByNumber");
+
+  private final RpcTransport transport;
+  private final ObjectMapper objectMapper = ObjectMapperFactory.getObjectMapper();
+
+  EthereumBlockFetcher(RpcTransport transport) {
+    this.transport = transport;
+  }
+
+  /**
+   * @return The blocks fromBlock to toBlock (both inclusive), ordered by block number
+   * @throws IOException If the request fails or any of the blocks is not available on the node
+   */
+  List<Block> getBlocks(long fromBlock, long toBlock) throws IOException {
+    int count = (int) (toBlock - fromBlock + 1);
+    List<Request<?, EthBlock>> requests = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      // The request id is the position in the batch, responses may arrive in any order
+      requests.add(new Request<>("eth_getBlockByNumber",
+          Arrays.asList(new DefaultBlockParameterNumber(fromBlock + i).getValue(), true),
+          i, null, EthBlock.class));
+    }
+
+    EthBlock[] responses;
+    long start = System.nanoTime();
+    try {
+      responses = transport.send(objectMapper.writeValueAsString(requests), EthBlock[].class);
+    } catch (IOException e) {
+      BATCH_ERRORS.increment();
+      throw e;
+    } finally {
+      BATCH_TIMER.recordSince(start);
+    }
+    if (responses.length != count) {
+      throw new IOException("Expected " + count + " responses in batch, got " + responses.length);
+    }
+
+    Block[] blocks = new Block[count];
+    for (EthBlock response : responses) {
+      if (response.hasError()) {
+        throw new IOException("Error fetching ether block: " + response.getError().getMessage());
+      }
+      int index = (int) response.getId();
+      if (index < 0 || index >= count || response.getBlock() == null) {
+        throw new IOException("Ether block " + (fromBlock + index) + " not available on node");
+      }
+      blocks[index] = response.getBlock();
+    }
+    return Arrays.asList(blocks);
+  }
+}
@@ -0,0 +1,122 @@
+package modum.io.monitor;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.web3j.protocol.core.methods.response.EthBlock.Block;
+
+/**
+ * Catches up on historical ethereum blocks. Block ranges of batchSize blocks are fetched
+ * concurrently by parallelism worker threads, while the blocks are handed to the consumer
+ * strictly in block order on the calling thread.
+ */
+class EthereumCatchUp {
+  private final static Logger LOG = LoggerFactory.getLogger(EthereumCatchUp.class);
+  private final static long PROGRESS_LOG_INTERVAL_MS = 10_000L;
+  private final static int MAX_ATTEMPTS = 3;
+
+  private final EthereumBlockFetcher fetcher;
+  private final ExecutorService executor;
+  private final int batchSize;
+  private final int window;
+
+  EthereumCatchUp(EthereumBlockFetcher fetcher, int batchSize, int parallelism) {
+    if (batchSize < 1 || parallelism < 1)
+      throw new IllegalArgumentException("Batch size and parallelism must be at least 1");
+    this.fetcher = fetcher;
+    this.batchSize = batchSize;
+    this.window = parallelism * 2; // Keep the workers busy while the consumer is processing
+    AtomicInteger threadCount = new AtomicInteger();
+    this.executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+      Thread thread = new Thread(runnable, "ether-catchup-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Fetches and processes the blocks fromBlock to toBlock (both inclusive).
+   * @param consumer Called for each block, in block order
+   * @return The number of the last processed block
+   * @throws IOException If a batch could not be fetched. The blocks before it were processed.
+   */
+  long run(long fromBlock, long toBlock, Consumer<Block> consumer)
+      throws IOException, InterruptedException {
+    Deque<Future<List<Block>>> inFlight = new ArrayDeque<>(window);
+    long nextToFetch = fromBlock;
+    long lastProcessed = fromBlock - 1;
+    long startTime = System.currentTimeMillis();
+    long lastLogTime = startTime;
+    long lastLogBlock = lastProcessed;
+
+    LOG.info("Catching up on ether blocks {} to {}", fromBlock, toBlock);
+    try {
+      while (lastProcessed < toBlock) {
+        while (inFlight.size() < window && nextToFetch <= toBlock) {
+          final long from = nextToFetch;
+          final long to = Math.min(from + batchSize - 1, toBlock);
+          inFlight.addLast(executor.submit(() -> fetchWithRetry(from, to)));
+          nextToFetch = to + 1;
+        }
+
+        for (Block block : await(inFlight.removeFirst())) {
+          consumer.accept(block);
+          lastProcessed = block.getNumber().longValue();
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - lastLogTime >= PROGRESS_LOG_INTERVAL_MS) {
+          LOG.info("Ether catch-up at block {} of {}: {} blocks/s", lastProcessed, toBlock,
+              (lastProcessed - lastLogBlock) * 1000L / (now - lastLogTime));
+          lastLogTime = now;
+          lastLogBlock = lastProcessed;
+        }
+      }
+    } finally {
+      inFlight.forEach(future -> future.cancel(true));
+    }
+
+    long duration = Math.max(1L, System.currentTimeMillis() - startTime);
+    LOG.info("Caught up on {} ether blocks in {} s: {} blocks/s", toBlock - fromBlock + 1,
+        duration / 1000L, (toBlock - fromBlock + 1) * 1000L / duration);
+    return lastProcessed;
+  }
+
+  void shutdown() {
+    executor.shutdownNow();
+  }
+
+  private List<Block> fetchWithRetry(long from, long to) throws IOException, InterruptedException {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        return fetcher.getBlocks(from, to);
+      } catch (IOException e) {
+        if (attempt >= MAX_ATTEMPTS)
+          throw e;
+        LOG.warn("Fetching ether blocks {} to {} failed (attempt {}): {}", from, to, attempt,
+            e.getMessage());
+        Thread.sleep(1000L * attempt);
+      }
+    }
+  }
+
+  private static List<Block> await(Future<List<Block>> future)
+      throws IOException, InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException)
+        throw (IOException) e.getCause();
+      throw new IOException(e.getCause());
+    }
+  }
+}
@@ -0,0 +1,201 @@
+package modum.io.monitor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.methods.response.EthBlock.Block;
+
+/**
+ * Follows the head of the chain once the catch-up is done. Waits for a node to push a new head
+ * on one of the {@link NewHeadsSubscription}s, then fetches the full blocks up to it in one batch.
+ * With several nodes, each of them pushes its heads, and the first one to announce a block wins.
+ *
+ * Without a subscription, or while all of them are disconnected, the head is polled with
+ * eth_blockNumber every poll interval instead, and the subscriptions are reconnected with a
+ * backoff. While subscribed, the head is still polled every SUBSCRIBED_POLL_MS in case a
+ * notification was lost. Failed fetches are retried with a backoff up to the poll interval, as the
+ * node answering may not have the block announced by another node yet.
+ *
+ * Blocks are processed strictly by number, so switching between nodes neither skips nor repeats
+ * blocks. If the parent hash of a block doesn't match the previously processed block, the chain was
+ * reorganised, and the last reorgSafetyMargin blocks are processed again. Pay-ins that were
+ * already saved are not counted twice.
+ */
+class EthereumLiveTail {
+  private final static Logger LOG = LoggerFactory.getLogger(EthereumLiveTail.class);
+  private final static long SUBSCRIBED_POLL_MS = 60_000L;
+  private final static long MIN_RECONNECT_DELAY_MS = 1_000L;
+  private final static long MAX_RECONNECT_DELAY_MS = 60_000L;
+  private final static long MIN_RETRY_DELAY_MS = 100L;
+  private final static Metrics.Counter NOTIFIED_HEADS = Metrics.counter("ether_heads_total",
+      "New ethereum heads seen by the live tail", "source", "subscription");
+  private final static Metrics.Counter POLLED_HEADS = Metrics.counter("ether_heads_total",
+      "New ethereum heads seen by the live tail", "source", "poll");
+  private final static Metrics.Counter REORGS = Metrics.counter("ether_reorgs_total",
+      "Reorganisations of the ethereum chain seen by the live tail");
+
+  private final Web3j web3;
+  private final EthereumBlockFetcher fetcher;
+  private final List<Subscription> subscriptions = new ArrayList<>();
+  private final long pollIntervalMs;
+  private final int batchSize;
+  private final int reorgSafetyMargin;
+  private final BlockingQueue<Long> notifiedHeads = new LinkedBlockingQueue<>();
+
+  /**
+   * @param subscriptionUrls WebSocket URLs or IPC socket paths to subscribe to new heads, empty to
+   * only poll
+   */
+  EthereumLiveTail(Web3j web3, EthereumBlockFetcher fetcher, List<String> subscriptionUrls,
+      long pollIntervalMs, int batchSize, int reorgSafetyMargin) {
+    this.web3 = web3;
+    this.fetcher = fetcher;
+    for (String url : subscriptionUrls) {
+      subscriptions.add(new Subscription(NewHeadsSubscription.create(url, notifiedHeads::add)));
+    }
+    this.pollIntervalMs = pollIntervalMs;
+    this.batchSize = batchSize;
+    this.reorgSafetyMargin = Math.max(reorgSafetyMargin, 1);
+
+    Metrics.gauge("ether_heads_subscribed", "1 if subscribed to new ethereum heads, else 0",
+        () -> isSubscribed() ? 1 : 0);
+  }
+
+  /**
+   * @return True if at least one subscription is connected
+   */
+  boolean isSubscribed() {
+    for (Subscription subscription : subscriptions) {
+      if (subscription.heads.isConnected())
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Processes new blocks until the thread is interrupted.
+   * @param nextBlock The first block to process
+   * @param consumer Called for each block, in block order
+   */
+  void run(long nextBlock, Consumer<Block> consumer) {
+    LOG.info("Following new ether blocks from block {}, {}", nextBlock, subscriptions.isEmpty()
+        ? "polling every " + pollIntervalMs + " ms" : "subscribing to new heads");
+    String lastHash = null;
+    boolean pollNow = true;
+    long retryDelay = MIN_RETRY_DELAY_MS;
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        for (Subscription subscription : subscriptions) {
+          if (subscription.reconnect())
+            pollNow = true; // Heads may have been missed while connecting
+        }
+
+        long head;
+        Long notified = pollNow ? null : awaitHead();
+        pollNow = false;
+        try {
+          if (notified != null) {
+            head = notified;
+            Long later;
+            while ((later = notifiedHeads.poll()) != null)
+              head = Math.max(head, later);
+            if (head >= nextBlock)
+              NOTIFIED_HEADS.increment();
+          } else {
+            head = web3.ethBlockNumber().send().getBlockNumber().longValue();
+            if (head >= nextBlock)
+              POLLED_HEADS.increment();
+          }
+
+          while (nextBlock <= head) {
+            List<Block> blocks = fetcher.getBlocks(nextBlock,
+                Math.min(head, nextBlock + batchSize - 1));
+            for (Block block : blocks) {
+              if (lastHash != null && !lastHash.equals(block.getParentHash())) {
+                REORGS.increment();
+                long rewind = Math.max(block.getNumber().longValue() - reorgSafetyMargin, 0L);
+                LOG.warn("Ether block {} does not follow the processed chain, reprocessing from "
+                    + "block {}", block.getNumber(), rewind);
+                nextBlock = rewind;
+                lastHash = null;
+                break;
+              }
+              consumer.accept(block);
+              lastHash = block.getHash();
+              nextBlock = block.getNumber().longValue() + 1;
+            }
+          }
+          retryDelay = MIN_RETRY_DELAY_MS;
+        } catch (IOException e) {
+          if (retryDelay >= pollIntervalMs)
+            LOG.error("Error following ether blocks at block {}, retrying: {} {}", nextBlock,
+                e.getMessage(), e.getCause());
+          Thread.sleep(retryDelay);
+          retryDelay = Math.min(retryDelay * 2, pollIntervalMs);
+          pollNow = true;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      for (Subscription subscription : subscriptions) {
+        subscription.heads.close();
+      }
+    }
+  }
+
+  /**
+   * Waits for a notified head. Gives up after the poll interval, or while subscribed after
+   * SUBSCRIBED_POLL_MS or once the subscription is lost.
+   * @return The notified head, or null to poll the head
+   */
+  private Long awaitHead() throws InterruptedException {
+    long deadline = System.currentTimeMillis() + SUBSCRIBED_POLL_MS;
+    do {
+      Long notified = notifiedHeads.poll(pollIntervalMs, TimeUnit.MILLISECONDS);
+      if (notified != null)
+        return notified;
+    } while (isSubscribed() && System.currentTimeMillis() < deadline);
+    return null;
+  }
+
+  /**
+   * A subscription and the backoff of its reconnects
+   */
+  private static class Subscription {
+    private final NewHeadsSubscription heads;
+    private long reconnectDelay = MIN_RECONNECT_DELAY_MS;
+    private long nextReconnect = 0L;
+
+    private Subscription(NewHeadsSubscription heads) {
+      this.heads = heads;
+    }
+
+    /**
+     * @return True if the subscription was disconnected and is connected now
+     */
+    private boolean reconnect() {
+      long now = System.currentTimeMillis();
+      if (heads.isConnected() || now < nextReconnect)
+        return false;
+      try {
+        heads.connect();
+        reconnectDelay = MIN_RECONNECT_DELAY_MS;
+        return true;
+      } catch (IOException e) {
+        LOG.warn("Could not subscribe to new ether heads on {}, retry in {} ms: {}", heads,
+            reconnectDelay, e.getMessage());
+        nextReconnect = now + reconnectDelay;
+        reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY_MS);
+        return false;
+      }
+    }
+  }
+}
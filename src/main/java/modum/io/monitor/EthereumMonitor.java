@@ -7,42 +7,113 @@ import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.sql.SQLException;
 import java.time.Instant;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.spongycastle.util.encoders.Hex;
 import org.web3j.protocol.Web3j;
 import org.web3j.protocol.core.DefaultBlockParameterNumber;
 import org.web3j.protocol.core.methods.response.EthBlock.Block;
-import org.web3j.protocol.http.HttpService;
+import org.web3j.protocol.core.methods.response.EthBlock.TransactionResult;
+import org.web3j.protocol.core.methods.response.Transaction;
 import org.web3j.utils.Convert;
 import org.web3j.utils.Convert.Unit;
 
 /**
  * Connects to an ethereum full-node and scans the blockchain transactions for watched addresses.
- * Keeps track of the total amount in USD send to any watched address.
+ * Adds the amount in USD send to any watched address to the totals ledger and the pay-in index.
  */
 class EthereumMonitor {
   private final static Logger LOG = LoggerFactory.getLogger(EthereumMonitor.class);
+  private final static String CHECKPOINT_CHAIN = "ETH";
+  private final static long CHECKPOINT_INTERVAL_MS = 10_000L;
+  private final static int MAX_SAVE_ATTEMPTS = 10;
+  private final static Metrics.Timer BLOCK_TIMER = Metrics.timer("ether_block_process_seconds",
+      "Time to process the transactions of an ethereum block");
+  private final static Metrics.Timer DETECTION_TIMER = Metrics.timer(
+      "ether_payin_detection_seconds",
+      "Time from the timestamp of the block to detecting the pay-in, after the catch-up");
 
   private final Web3j web3;
   private final ExchangeRateService fxService;
   private final MailService mailService;
   private final UserService userService;
+  private final TotalsLedger totalsLedger;
+  private final PayInIndex payInIndex;
+  private final CheckpointService checkpointService;
+  private final EthereumCatchUp catchUp;
+  private final EthereumLiveTail liveTail;
+  private final int catchUpBatchSize;
+  private final int reorgSafetyMargin;
   private boolean started = false;
-  private Map<String, String> monitoredAddresses = new HashMap<>(); // public key -> address
-  private BigDecimal totalRaised = BigDecimal.ZERO;
+  private long lastCheckpoint = -1L;
+  private long lastCheckpointTime = 0L;
+  // Pay-ins that could not be saved by transaction hash, retried at the next checkpoint
+  private final Map<String, EtherPayIn> unsavedPayIns = new ConcurrentHashMap<>();
+  // Pay-ins queued since the last checkpoint, completed after their mail and totals are handled
+  private final Queue<CompletableFuture<Void>> unconfirmedSaves = new ConcurrentLinkedQueue<>();
+  private final EtherAddressIndex monitoredAddresses = new EtherAddressIndex(); // address -> public key
+  private final Set<String> monitoredPublicKeys = ConcurrentHashMap.newKeySet();
+  private volatile long headBlock = -1L;
+  private volatile long processedBlock = -1L;
+  private volatile long processedBlockTime = 0L; // Timestamp of the processed block in seconds
+  private volatile boolean live = false;
 
   public EthereumMonitor(UserService userService, MailService mailService,
-      ExchangeRateService fxService, String ipcPath) {
+      ExchangeRateService fxService, TotalsLedger totalsLedger, PayInIndex payInIndex,
+      CheckpointService checkpointService, String nodeUrl, String webSocketUrl, long pollIntervalMs,
+      int catchUpBatchSize, int catchUpParallelism, int reorgSafetyMargin) {
     this.userService = userService;
+    this.totalsLedger = totalsLedger;
+    this.payInIndex = payInIndex;
     this.mailService = mailService;
     this.fxService = fxService;
-    this.web3 = Web3j.build(new HttpService(ipcPath));
+    this.checkpointService = checkpointService;
+    this.reorgSafetyMargin = reorgSafetyMargin;
+    // Connections for the catch-up workers and the live tail, to each node if there are several
+    RpcTransport transport = RpcTransport.create(nodeUrl, catchUpParallelism + 1);
+    this.web3 = Web3j.build(new MeteredWeb3jService(new RpcTransportService(transport)));
+    this.catchUpBatchSize = catchUpBatchSize;
+    EthereumBlockFetcher fetcher = new EthereumBlockFetcher(transport);
+    this.catchUp = new EthereumCatchUp(fetcher, catchUpBatchSize, catchUpParallelism);
+    // New heads are pushed over WebSockets or IPC sockets, HTTP can only be polled
+    List<String> subscriptionUrls = webSocketUrl != null ? RpcTransport.splitUrls(webSocketUrl)
+        : RpcTransport.splitUrls(nodeUrl).stream().filter(RpcTransport::isIpc)
+            .collect(Collectors.toList());
+    this.liveTail = new EthereumLiveTail(web3, fetcher, subscriptionUrls, pollIntervalMs,
+        catchUpBatchSize, reorgSafetyMargin);
+
+    Metrics.gauge("ether_head_block", "Highest ethereum block number known from the node",
+        () -> headBlock);
+    Metrics.gauge("ether_processed_block", "Number of the last processed ethereum block",
+        () -> processedBlock);
+    Metrics.gauge("ether_block_lag", "Ethereum blocks behind the head known from the node",
+        () -> processedBlock >= 0 ? Math.max(headBlock - processedBlock, 0L) : Double.NaN);
+    Metrics.gauge("ether_block_age_seconds", "Age of the last processed ethereum block",
+        () -> processedBlock >= 0
+            ? Instant.now().getEpochSecond() - processedBlockTime : Double.NaN);
   }
 
   public void fundsReceived(String hash, String address, BigInteger wei, Long blockHeight) {
+    fundsReceived(new EtherPayIn(hash, address, wei, blockHeight, 0));
+  }
+
+  private void fundsReceived(EtherPayIn payIn) {
+    String hash = payIn.hash;
+    String address = payIn.address;
+    BigInteger wei = payIn.wei;
+    long blockHeight = payIn.blockNumber;
+
     // Get exchange rate
     BigDecimal USDperETH;
     try {
@@ -50,6 +121,11 @@ class EthereumMonitor {
     } catch (SQLException e) {
       LOG.error("Could not fetch exchange rate for ether block {}. {} {}",
           blockHeight, e.getMessage(), e.getCause());
+      retryLater(payIn);
+      return;
+    } catch (RuntimeException e) {
+      // There is no rate before the first one, retrying doesn't help
+      LOG.error("Skipping pay-in {} in ether block {}. {}", hash, blockHeight, e.getMessage());
       return;
     }
     BigDecimal ethers = Convert.fromWei(new BigDecimal(wei), Unit.ETHER);
@@ -62,20 +138,38 @@ class EthereumMonitor {
     } catch (SQLException e) {
       LOG.error("Could not fetch email address for public key {} / address {}. {} {}",
           monitoredAddresses.get(address), address, e.getMessage(), e.getCause());
+    } catch (RuntimeException e) {
+      // No investor has the key, the pay-in is saved without email
+      LOG.error("No investor for public key {} / address {}. {}",
+          monitoredAddresses.get(address), address, e.getMessage());
     }
 
-    boolean inserted = false;
-    try {
-      inserted = userService.savePayIn(hash, "ETH", wei, USDperETH, usdReceived, email );
-    } catch (SQLException e) {
-      LOG.info("Could not save payin: {} ETH / {} USD / {} FX / {} / Block: {}",
-          ethers,
-          usdReceived,
-          USDperETH,
-          email,
-          blockHeight);
-    }
+    final String fetchedEmail = email;
+    CompletableFuture<Void> saved = userService
+        .savePayInAsync(hash, "ETH", wei, USDperETH, usdReceived, email, address)
+        .handle((inserted, error) -> {
+          if (error != null) {
+            retryLater(payIn);
+            LOG.info("Could not save payin: {} ETH / {} USD / {} FX / {} / Block: {}",
+                ethers,
+                usdReceived,
+                USDperETH,
+                fetchedEmail,
+                blockHeight);
+          }
+          payInSaved(hash, address, wei, error == null && inserted, ethers, usdReceived,
+              USDperETH, fetchedEmail, blockHeight);
+          return null;
+        });
+    unconfirmedSaves.add(saved);
+  }
 
+  /**
+   * Completes a pay-in once the pay-in writer has saved it
+   */
+  private void payInSaved(String hash, String address, BigInteger wei, boolean inserted,
+      BigDecimal ethers, BigDecimal usdReceived, BigDecimal USDperETH, String email,
+      Long blockHeight) {
     if (inserted) {
       final String etherscanLink = "https://etherscan.io/tx/" + hash;
       mailService.sendConfirmationMail(email, ethers.toString() + " ETH", etherscanLink);
@@ -89,61 +183,261 @@ class EthereumMonitor {
         email,
         blockHeight);
 
-    totalRaised = totalRaised.add(usdReceived);
+    // Pay-ins saved by a previous run are already part of the total loaded at start, pay-ins that
+    // failed are added when their retry inserts them
+    if (inserted) {
+      totalsLedger.add("ETH", usdReceived);
+      payInIndex.add(address, "ETH", wei, usdReceived);
+    }
+  }
+
+  /**
+   * Add public keys we want to monitor. Invalid keys are logged and skipped.
+   * @param publicKeys Ethereum public keys as hex string
+   */
+  public void addMonitoredEtherPublicKeys(Collection<String> publicKeys) {
+    Map<String, byte[]> addresses = new ConcurrentHashMap<>();
+    publicKeys.parallelStream().forEach(publicKey -> {
+      try {
+        addresses.put(publicKey, deriveAddress(publicKey));
+      } catch (RuntimeException e) {
+        LOG.error("Invalid Ethereum public key {}. {}", publicKey, e.getMessage());
+      }
+    });
+    addMonitoredEtherAddresses(addresses);
   }
 
-  public Long getTotalRaisedUSD() {
-    return totalRaised.setScale(0, BigDecimal.ROUND_UP).longValue();
+  /**
+   * Add addresses we want to monitor, which were already derived from their public keys
+   * @param addresses Ethereum public key as hex string -> 20 byte address
+   */
+  public void addMonitoredEtherAddresses(Map<String, byte[]> addresses) {
+    addresses.forEach((publicKey, address) -> {
+      monitoredAddresses.put(address, publicKey);
+      monitoredPublicKeys.add(publicKey);
+    });
+    LOG.info("Add {} monitored Ethereum Addresses", addresses.size());
   }
 
   /**
-   * Add a public key we want to monitor
    * @param publicKey Ethereum public key as hex string
+   * @return True if the address of the key is monitored
    */
-  public void addMonitoredEtherPublicKey(String publicKey) {
-    String addressString = Hex.toHexString(org.ethereum.crypto.ECKey.fromPublicOnly( Hex.decode(publicKey)).getAddress());
-    if (!addressString.startsWith("0x"))
-      addressString = "0x" + addressString;
-    LOG.info("Add monitored Ethereum Address: {}", addressString);
-    monitoredAddresses.put(addressString.toLowerCase(), publicKey);
+  public boolean isMonitoredPublicKey(String publicKey) {
+    return monitoredPublicKeys.contains(publicKey);
   }
 
-  public void start(Long startBlock) throws IOException {
+  /**
+   * @param publicKey Ethereum public key as hex string
+   * @return The 20 byte address of the key
+   */
+  public static byte[] deriveAddress(String publicKey) {
+    return org.ethereum.crypto.ECKey.fromPublicOnly(Hex.decode(publicKey)).getAddress();
+  }
+
+  public void start(Long startBlock) throws IOException, SQLException {
     if (!started) {
+      totalsLedger.set("ETH", userService.getTotalPayInUSD("ETH"));
+      long resumeBlock = getResumeBlock(startBlock);
+
       // Check if node is up-to-date
       BigInteger blockNumber = web3.ethBlockNumber().send().getBlockNumber();
-      Block highestBlock = web3.ethGetBlockByNumber(() -> new DefaultBlockParameterNumber(blockNumber).getValue(), false).send().getBlock();
-      Instant latestBlockTime = Instant.ofEpochSecond(highestBlock.getTimestamp().longValue());
-      LOG.info("Highest ethereum block number from fullnode: {}. Time: {}", blockNumber, latestBlockTime);
-      if (latestBlockTime.isBefore(Instant.now().minus(10, MINUTES)))
-        LOG.warn("Ethereum fullnode does not seem to be up-to-date");
-      else
-        LOG.info("Ethereum fullnode seems to be up-to-date");
+      headBlock = blockNumber.longValue();
+      Block highestBlock = getBlockHeader(blockNumber);
+      if (highestBlock == null) {
+        // With several nodes, the block may be requested from a node that is a block behind
+        LOG.warn("Ethereum fullnode has no block {} yet, checking the block before", blockNumber);
+        highestBlock = getBlockHeader(blockNumber.subtract(BigInteger.ONE));
+      }
+      if (highestBlock == null) {
+        LOG.warn("Could not check if the ethereum fullnode is up-to-date, block {} not found",
+            blockNumber);
+      } else {
+        Instant latestBlockTime = Instant.ofEpochSecond(highestBlock.getTimestamp().longValue());
+        LOG.info("Highest ethereum block number from fullnode: {}. Time: {}", blockNumber, latestBlockTime);
+        if (latestBlockTime.isBefore(Instant.now().minus(10, MINUTES)))
+          LOG.warn("Ethereum fullnode does not seem to be up-to-date");
+        else
+          LOG.info("Ethereum fullnode seems to be up-to-date");
+      }
 
       started = true;
 
-      web3.catchUpToLatestAndSubscribeToNewTransactionsObservable(
-          new DefaultBlockParameterNumber(startBlock))
-          .subscribe(tx -> {
-            if (monitoredAddresses.get(tx.getTo()) != null) {
-              // Money was paid to a monitored address
-              try {
-                fundsReceived(tx.getHash(), tx.getTo(), tx.getValue(), tx.getBlockNumber().longValue());
-              } catch (Throwable e) {
-                LOG.error("Error in fundsReceived: {} {}", e.getMessage(), e.getCause());
-              }
-            }
-
-            if (monitoredAddresses.get(tx.getFrom().toLowerCase()) != null) {
-              // This should normally not happen as it means funds are stolen!
-              LOG.error("WARN: Removed: {} wei from payin address", tx.getValue().toString());
-            }
-          }, throwable -> {
-            LOG.error("Error during scanning of txs: {} {}", throwable.getMessage(),
-                throwable.getCause());
-          });
+      Thread scanner = new Thread(() -> followNewBlocks(catchUp(resumeBlock)), "ether-monitor");
+      scanner.setDaemon(true);
+      scanner.start();
     } else {
       LOG.warn("modum.io.monitor.EthereumMonitor is already started");
     }
   }
+
+  /**
+   * @return The block without transactions, or null if the node doesn't have it
+   */
+  private Block getBlockHeader(BigInteger blockNumber) throws IOException {
+    return web3.ethGetBlockByNumber(() -> new DefaultBlockParameterNumber(blockNumber).getValue(),
+        false).send().getBlock();
+  }
+
+  /**
+   * @return The block after the stored checkpoint, minus the reorg safety margin, or startBlock
+   * if there is no checkpoint yet
+   */
+  private long getResumeBlock(long startBlock) {
+    try {
+      Optional<Long> checkpoint = checkpointService.getCheckpoint(CHECKPOINT_CHAIN);
+      if (checkpoint.isPresent()) {
+        lastCheckpoint = checkpoint.get();
+        long resumeBlock = Math.max(startBlock, checkpoint.get() + 1 - reorgSafetyMargin);
+        LOG.info("Resuming ether scan at block {}, checkpoint is {}", resumeBlock,
+            checkpoint.get());
+        return resumeBlock;
+      }
+    } catch (SQLException e) {
+      LOG.error("Could not load ether checkpoint, starting at block {}. {} {}",
+          startBlock, e.getMessage(), e.getCause());
+    }
+    return startBlock;
+  }
+
+  /**
+   * Fetches historical blocks in parallel batches until we are less than one batch behind the
+   * head of the chain.
+   * @return The next block to process
+   */
+  private long catchUp(long startBlock) {
+    long nextBlock = startBlock;
+    try {
+      while (true) {
+        long headBlock = web3.ethBlockNumber().send().getBlockNumber().longValue();
+        this.headBlock = headBlock;
+        if (headBlock - nextBlock < catchUpBatchSize)
+          break;
+        nextBlock = catchUp.run(nextBlock, headBlock, this::processBlock) + 1;
+      }
+    } catch (IOException e) {
+      // The blocks the failed run processed before the error are not scanned again
+      nextBlock = Math.max(nextBlock, processedBlock + 1);
+      LOG.error("Error during catch-up at ether block {}, continuing with subscription: {} {}",
+          nextBlock, e.getMessage(), e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      catchUp.shutdown();
+    }
+    return nextBlock;
+  }
+
+  private void followNewBlocks(long startBlock) {
+    live = true;
+    liveTail.run(startBlock, this::processBlock);
+  }
+
+  private void processBlock(Block block) {
+    long start = System.nanoTime();
+    long blockTime = block.getTimestamp().longValue();
+    long blockNumber = block.getNumber().longValue();
+    for (TransactionResult<?> result : block.getTransactions()) {
+      processTransaction((Transaction) result.get(), blockNumber, blockTime);
+    }
+    saveCheckpoint(blockNumber);
+    BLOCK_TIMER.recordSince(start);
+    processedBlockTime = blockTime;
+    processedBlock = blockNumber;
+    if (blockNumber > headBlock)
+      headBlock = blockNumber;
+  }
+
+  /**
+   * Records the block as fully processed. Retries the pay-ins that could not be saved before and
+   * waits for the pay-in writer, so all pay-ins up to this block are in the payment log before the
+   * checkpoint is written.
+   */
+  private void saveCheckpoint(long blockNumber) {
+    long now = System.currentTimeMillis();
+    if (now - lastCheckpointTime < CHECKPOINT_INTERVAL_MS)
+      return;
+    lastCheckpointTime = now;
+
+    List<EtherPayIn> retries = new ArrayList<>(unsavedPayIns.values());
+    retries.forEach(payIn -> unsavedPayIns.remove(payIn.hash));
+    for (EtherPayIn payIn : retries) {
+      LOG.info("Retrying pay-in {} in ether block {}", payIn.hash, payIn.blockNumber);
+      fundsReceived(payIn);
+    }
+
+    if (!unconfirmedSaves.isEmpty()) {
+      CompletableFuture.allOf(unconfirmedSaves.toArray(new CompletableFuture<?>[0])).join();
+      unconfirmedSaves.clear();
+    }
+
+    // Don't move past a block with a pay-in that is still retried, so a restart retries it too
+    long checkpoint = unsavedPayIns.values().stream()
+        .mapToLong(payIn -> payIn.blockNumber - 1)
+        .reduce(blockNumber, Math::min);
+    if (checkpoint <= lastCheckpoint)
+      return;
+    try {
+      checkpointService.saveCheckpoint(CHECKPOINT_CHAIN, checkpoint);
+      lastCheckpoint = checkpoint;
+    } catch (SQLException e) {
+      LOG.error("Could not save ether checkpoint {}. {} {}", checkpoint, e.getMessage(),
+          e.getCause());
+    }
+  }
+
+  /**
+   * Keeps a pay-in that could not be saved for a retry at the next checkpoint, unless it failed
+   * too often already
+   */
+  private void retryLater(EtherPayIn payIn) {
+    int attempts = payIn.attempts + 1;
+    if (attempts >= MAX_SAVE_ATTEMPTS) {
+      LOG.error("Giving up on pay-in {} in ether block {} after {} attempts", payIn.hash,
+          payIn.blockNumber, attempts);
+      return;
+    }
+    unsavedPayIns.put(payIn.hash, new EtherPayIn(payIn.hash, payIn.address, payIn.wei,
+        payIn.blockNumber, attempts));
+  }
+
+  private void processTransaction(Transaction tx, long blockNumber, long blockTime) {
+    if (monitoredAddresses.get(tx.getTo()) != null) {
+      // Money was paid to a monitored address
+      if (live)
+        DETECTION_TIMER.recordMillis(System.currentTimeMillis() - blockTime * 1000L);
+      EtherPayIn payIn = new EtherPayIn(tx.getHash(), tx.getTo(), tx.getValue(), blockNumber, 0);
+      try {
+        fundsReceived(payIn);
+      } catch (Throwable e) {
+        retryLater(payIn);
+        LOG.error("Error in fundsReceived: {} {}", e.getMessage(), e.getCause());
+      }
+    }
+
+    if (monitoredAddresses.contains(tx.getFrom())) {
+      // This should normally not happen as it means funds are stolen!
+      LOG.error("WARN: Removed: {} wei from payin address", tx.getValue().toString());
+    }
+  }
+
+  /**
+   * A pay-in to a monitored address, with the number of failed attempts to save it
+   */
+  private static class EtherPayIn {
+    private final String hash;
+    private final String address;
+    private final BigInteger wei;
+    private final long blockNumber;
+    private final int attempts;
+
+    private EtherPayIn(String hash, String address, BigInteger wei, long blockNumber,
+        int attempts) {
+      this.hash = hash;
+      this.address = address;
+      this.wei = wei;
+      this.blockNumber = blockNumber;
+      this.attempts = attempts;
+    }
+  }
 }
@@ -7,7 +7,9 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
-import java.time.Instant;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
 import javax.sql.DataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,65 +24,245 @@ import org.web3j.utils.Convert.Unit;
  * Each exchange rate requires the block height, for which the exchange rate should be fetched.
  * If the block height is not in the database the next older block is used instead.
  *
+ * The table is kept in memory as two sorted indexes (ether block number -> rate and
+ * creation date -> bitcoin rate), which are refreshed incrementally on the 'exchange_rate'
+ * notification. A refresh reads the rows with a higher id than any row read before, so rates
+ * inserted late with an older creation date are loaded too. Lookups return the same rate as the
+ * query "WHERE key = (SELECT MAX(key) ... WHERE key <= ?) ORDER BY creation_date ASC LIMIT 1".
+ *
+ * A key beyond the newest rate in the index, as for live pay-ins, also checks the rows inserted
+ * since the index was built, in case their notification is still on its way. That query only
+ * scans the newest ids. If it finds any, the indexes are refreshed, so the rows are not read again
+ * even without the notification trigger.
+ *
+ * The table needs an 'id' column that increases with every inserted row.
  */
 public class ExchangeRateService {
   private final static Logger LOG = LoggerFactory.getLogger(ExchangeRateService.class);
+  private final static Metrics.Timer REFRESH_QUERY = UserService.queryTimer("exchange_rate");
+  private final static Metrics.Timer LATEST_QUERY = UserService.queryTimer("exchange_rate_latest");
 
   private final DataSource dataSource;
 
-  public ExchangeRateService(DataSource dataSource) {
+  // Mutable state of the indexes, guarded by 'this'
+  private final TreeMap<Long, Rate> ethRates = new TreeMap<>(); // block number -> rate
+  private final TreeMap<Long, Rate> btcRates = new TreeMap<>(); // creation date in microseconds -> rate
+  private long lastId = Long.MIN_VALUE;
+
+  private volatile RateIndex ethIndex = RateIndex.EMPTY;
+  private volatile RateIndex btcIndex = RateIndex.EMPTY;
+
+  public ExchangeRateService(DataSource dataSource) throws SQLException {
     this.dataSource = dataSource;
+    refresh();
   }
 
   public BigDecimal getUSDperETH(Long blockHeight) throws SQLException {
+    RateIndex index = ethIndex;
+    BigDecimal rate = blockHeight > index.lastKey()
+        ? getLatest(index, blockHeight, "block_nr_eth", "rate_eth")
+        : index.floor(blockHeight);
+    if (rate == null) {
+      throw new RuntimeException("Result set empty from get exchange rate for eth");
+    }
+    return rate;
+  }
+
+  public BigDecimal getUSDPerBTC(Long timestamp) throws SQLException {
+    long micros = timestamp * 1_000_000L;
+    RateIndex index = btcIndex;
+    BigDecimal rate = micros > index.lastKey()
+        ? getLatest(index, micros, "creation_date", "rate_btc")
+        : index.floor(micros);
+    if (rate == null) {
+      throw new RuntimeException("Result set empty from get exchange rate for btc");
+    }
+    return rate;
+  }
+
+  public BigDecimal weiToUSD(BigInteger weiAmount, Long blockHeight) throws SQLException {
+    BigDecimal wei = new BigDecimal(weiAmount);
+    BigDecimal ethers = Convert.fromWei(wei, Unit.ETHER);
+    return ethers.multiply(getUSDperETH(blockHeight));
+  }
+
+  /**
+   * Loads all exchange rates inserted since the last refresh into the indexes, and rebuilds the
+   * indexes that got new rates
+   */
+  public synchronized void refresh() throws SQLException {
+    int rows = 0;
+    boolean ethChanged = false;
+    boolean btcChanged = false;
+    long start = System.nanoTime();
     try (
         Connection conn = dataSource.getConnection();
-        PreparedStatement preparedStatement = conn.prepareStatement(
-        "SELECT rate_eth FROM exchange_rate \n"
-            + "WHERE block_nr_eth = \n"
-            + "  (SELECT MAX(block_nr_eth) FROM exchange_rate \n"
-            + "   WHERE block_nr_eth <= ?\n"
-            + "   AND rate_eth IS NOT NULL) \n"
-            + "AND rate_eth IS NOT NULL\n"
-            + "ORDER BY creation_date ASC LIMIT 1;\n");
+        PreparedStatement preparedStatement = conn.prepareStatement(""
+            + "SELECT id, block_nr_eth, rate_eth, rate_btc, creation_date FROM exchange_rate \n"
+            + "WHERE id > ? \n"
+            + "ORDER BY id ASC");
     ) {
-      preparedStatement.setLong(1, blockHeight);
+      conn.setAutoCommit(false); // Required for the fetch size to take effect
+      preparedStatement.setFetchSize(10_000);
+      preparedStatement.setLong(1, lastId);
       try (ResultSet rs = preparedStatement.executeQuery()) {
-        if (rs.next()) {
-          return new BigDecimal(rs.getString("rate_eth"));
-        } else {
-          throw new RuntimeException("Result set empty from get exchange rate for eth");
+        while (rs.next()) {
+          Timestamp creationDate = rs.getTimestamp("creation_date");
+          long creationMicros = toMicros(creationDate);
+          long blockNumber = rs.getLong("block_nr_eth");
+          boolean hasBlockNumber = !rs.wasNull();
+          String rateEth = rs.getString("rate_eth");
+          if (rateEth != null && hasBlockNumber) {
+            Rate rate = new Rate(new BigDecimal(rateEth), creationMicros);
+            ethChanged |= addEthRate(blockNumber, rate);
+          }
+          String rateBtc = rs.getString("rate_btc");
+          if (rateBtc != null) {
+            // Rows with the same creation date: the first one wins, as with LIMIT 1
+            btcChanged |= btcRates.putIfAbsent(creationMicros,
+                new Rate(new BigDecimal(rateBtc), creationMicros)) == null;
+          }
+          lastId = rs.getLong("id");
+          rows++;
         }
       }
+      conn.commit();
+    } finally {
+      REFRESH_QUERY.recordSince(start);
     }
+
+    // The index that didn't change covers the new rows as well
+    ethIndex = ethChanged ? new RateIndex(ethRates, lastId) : ethIndex.withLoadedId(lastId);
+    btcIndex = btcChanged ? new RateIndex(btcRates, lastId) : btcIndex.withLoadedId(lastId);
+    if (rows > 0)
+      LOG.debug("Loaded {} exchange rates", rows);
   }
 
-  public BigDecimal getUSDPerBTC(Long timestamp) throws SQLException {
+  /**
+   * @return True if the rate is the rate of its block now
+   */
+  private boolean addEthRate(long blockNumber, Rate rate) {
+    // Several rates for one block: the oldest one wins, as with ORDER BY creation_date ASC
+    Rate existing = ethRates.get(blockNumber);
+    if (existing != null && rate.creationMicros >= existing.creationMicros)
+      return false;
+    ethRates.put(blockNumber, rate);
+    return true;
+  }
+
+  /**
+   * Looks up a key beyond the newest rate of the index. That rate applies, unless a rate for a
+   * key up to the looked up one was inserted after the index was built.
+   * @return The rate, or null if there is none
+   */
+  private BigDecimal getLatest(RateIndex index, long key, String keyColumn, String rateColumn)
+      throws SQLException {
+    BigDecimal rate = index.floor(key);
+    long rateKey = index.lastKey();
+    long rateCreationMicros = index.lastCreationMicros;
+    boolean newRows = false;
+    long start = System.nanoTime();
     try (
         Connection conn = dataSource.getConnection();
-        PreparedStatement preparedStatement = conn.prepareStatement(
-            "SELECT rate_btc FROM exchange_rate \n"
-                + "WHERE creation_date = \n"
-                + "  (SELECT MAX(creation_date) FROM exchange_rate \n"
-                + "   WHERE creation_date <= ?\n"
-                + "   AND rate_btc IS NOT NULL) \n"
-                + "AND rate_btc IS NOT NULL\n"
-                + "ORDER BY creation_date ASC LIMIT 1;\n");
+        // Filtered by id only, so the few new rows are found with the primary key, never by
+        // scanning the index of the key
+        PreparedStatement preparedStatement = conn.prepareStatement(""
+            + "SELECT " + rateColumn + ", " + keyColumn + ", creation_date FROM exchange_rate \n"
+            + "WHERE id > ?");
     ) {
-      preparedStatement.setTimestamp(1, Timestamp.from(Instant.ofEpochSecond(timestamp)));
+      preparedStatement.setLong(1, index.loadedId);
       try (ResultSet rs = preparedStatement.executeQuery()) {
-        if (rs.next()) {
-          return new BigDecimal(rs.getString("rate_btc"));
-        } else {
-          throw new RuntimeException("Result set empty from get exchange rate for btc");
+        while (rs.next()) {
+          newRows = true;
+          String rowRate = rs.getString(rateColumn);
+          long creationMicros = toMicros(rs.getTimestamp("creation_date"));
+          long rowKey = keyColumn.equals("creation_date") ? creationMicros : rs.getLong(keyColumn);
+          if (rs.wasNull() || rowRate == null || rowKey > key)
+            continue; // No block number or rate, or after the looked up key
+          if (rowKey > rateKey || rowKey == rateKey && creationMicros < rateCreationMicros) {
+            rate = new BigDecimal(rowRate);
+            rateKey = rowKey;
+            rateCreationMicros = creationMicros;
+          }
         }
       }
+    } finally {
+      LATEST_QUERY.recordSince(start);
+    }
+
+    // Otherwise, without a notification, every later lookup reads the rows again
+    if (newRows) {
+      try {
+        refresh();
+      } catch (SQLException e) {
+        LOG.error("Could not refresh exchange rates. {} {}", e.getMessage(), e.getCause());
+      }
     }
+    return rate;
   }
 
-  public BigDecimal weiToUSD(BigInteger weiAmount, Long blockHeight) throws SQLException {
-    BigDecimal wei = new BigDecimal(weiAmount);
-    BigDecimal ethers = Convert.fromWei(wei, Unit.ETHER);
-    return ethers.multiply(getUSDperETH(blockHeight));
+  private static long toMicros(Timestamp timestamp) {
+    return Math.floorDiv(timestamp.getTime(), 1000L) * 1_000_000L + timestamp.getNanos() / 1000L;
+  }
+
+  private static class Rate {
+    private final BigDecimal rate;
+    private final long creationMicros;
+
+    private Rate(BigDecimal rate, long creationMicros) {
+      this.rate = rate;
+      this.creationMicros = creationMicros;
+    }
+  }
+
+  /**
+   * Immutable sorted arrays of keys and rates, answering floor lookups with a binary search
+   */
+  private static class RateIndex {
+    private final static RateIndex EMPTY = new RateIndex(new TreeMap<>(), Long.MIN_VALUE);
+
+    private final long[] keys;
+    private final BigDecimal[] rates;
+    private final long lastCreationMicros;
+    private final long loadedId; // Highest id of the rows the index was built from
+
+    private RateIndex(TreeMap<Long, Rate> entries, long loadedId) {
+      keys = new long[entries.size()];
+      rates = new BigDecimal[entries.size()];
+      int i = 0;
+      for (Map.Entry<Long, Rate> entry : entries.entrySet()) {
+        keys[i] = entry.getKey();
+        rates[i] = entry.getValue().rate;
+        i++;
+      }
+      this.lastCreationMicros = entries.isEmpty() ? Long.MAX_VALUE
+          : entries.lastEntry().getValue().creationMicros;
+      this.loadedId = loadedId;
+    }
+
+    private RateIndex(RateIndex index, long loadedId) {
+      this.keys = index.keys;
+      this.rates = index.rates;
+      this.lastCreationMicros = index.lastCreationMicros;
+      this.loadedId = loadedId;
+    }
+
+    private RateIndex withLoadedId(long loadedId) {
+      return loadedId == this.loadedId ? this : new RateIndex(this, loadedId);
+    }
+
+    /**
+     * @return The rate with the highest key <= key, or null if there is none
+     */
+    private BigDecimal floor(long key) {
+      int index = Arrays.binarySearch(keys, key);
+      if (index < 0)
+        index = -index - 2;
+      return index >= 0 ? rates[index] : null;
+    }
+
+    private long lastKey() {
+      return keys.length > 0 ? keys[keys.length - 1] : Long.MIN_VALUE;
+    }
   }
 }
@@ -0,0 +1,53 @@
+package modum.io.monitor;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.io.InputStream;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.web3j.protocol.ObjectMapperFactory;
+
+/**
+ * JSON-RPC over HTTP, with a pool of keep-alive connections
+ */
+class HttpRpcTransport implements RpcTransport {
+  private final String url;
+  private final CloseableHttpClient httpClient;
+  private final ObjectMapper objectMapper = ObjectMapperFactory.getObjectMapper();
+
+  HttpRpcTransport(String url, int maxConnections) {
+    this.url = url;
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(maxConnections);
+    connectionManager.setDefaultMaxPerRoute(maxConnections);
+    this.httpClient = HttpClients.custom().setConnectionManager(connectionManager).build();
+  }
+
+  @Override
+  public <T> T send(String payload, Class<T> responseType) throws IOException {
+    HttpPost httpPost = new HttpPost(url);
+    httpPost.setEntity(new StringEntity(payload, ContentType.APPLICATION_JSON));
+    try (CloseableHttpResponse response = httpClient.execute(httpPost)) {
+      int status = response.getStatusLine().getStatusCode();
+      HttpEntity entity = response.getEntity();
+      if (status < 200 || status >= 300 || entity == null) {
+        throw new IOException("Unexpected response from ethereum fullnode: "
+            + response.getStatusLine());
+      }
+      try (InputStream content = entity.getContent()) {
+        return objectMapper.readValue(content, responseType);
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    httpClient.close();
+  }
+}
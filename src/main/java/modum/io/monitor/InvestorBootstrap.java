@@ -0,0 +1,273 @@
+package modum.io.monitor;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import javax.sql.DataSource;
+import org.bitcoinj.core.Address;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registers the pay-in addresses of all existing investors with the monitors at startup.
+ *
+ * The investor table is read with a server-side cursor in batches. While the next batch is read,
+ * the addresses of the previous batches are derived from their public keys in parallel on a
+ * fork-join pool. Derived batches are handed to the monitors in order on the calling thread.
+ *
+ * Addresses derived by earlier runs are taken from the {@link DerivedAddressStore}.
+ */
+class InvestorBootstrap {
+  private final static Logger LOG = LoggerFactory.getLogger(InvestorBootstrap.class);
+  private final static int BATCH_SIZE = 5_000;
+  private final static int SPLIT_THRESHOLD = 128;
+
+  private final DataSource dataSource;
+  private final UserService userService;
+  private final BitcoinMonitor bitcoinMonitor;
+  private final EthereumMonitor ethereumMonitor;
+  private final DerivedAddressStore addressStore;
+  private final int parallelism;
+  private final String bitcoinScheme;
+  private final AtomicInteger storeHits = new AtomicInteger();
+
+  InvestorBootstrap(DataSource dataSource, UserService userService,
+      BitcoinMonitor bitcoinMonitor, EthereumMonitor ethereumMonitor,
+      DerivedAddressStore addressStore, int parallelism) {
+    this.dataSource = dataSource;
+    this.userService = userService;
+    this.bitcoinMonitor = bitcoinMonitor;
+    this.ethereumMonitor = ethereumMonitor;
+    this.addressStore = addressStore;
+    this.parallelism = parallelism;
+    this.bitcoinScheme = DerivedAddressStore.bitcoinScheme(bitcoinMonitor.getNetworkParameters());
+  }
+
+  /**
+   * @return The number of investors read
+   */
+  int run() throws SQLException {
+    long start = System.currentTimeMillis();
+    addressStore.load();
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    Deque<ForkJoinTask<List<Investor>>> inFlight = new ArrayDeque<>();
+    int investors = 0;
+    try (
+        Connection conn = dataSource.getConnection();
+        PreparedStatement preparedStatement = conn.prepareStatement(""
+            + "SELECT pay_in_bitcoin_public_key, pay_in_ether_public_key, email, creation_date \n"
+            + "FROM investor");
+    ) {
+      conn.setAutoCommit(false); // Required for the fetch size to take effect
+      preparedStatement.setFetchSize(BATCH_SIZE);
+      try (ResultSet rs = preparedStatement.executeQuery()) {
+        List<Investor> batch = new ArrayList<>(BATCH_SIZE);
+        while (rs.next()) {
+          Timestamp creationDate = rs.getTimestamp("creation_date");
+          batch.add(new Investor(rs.getString("pay_in_bitcoin_public_key"),
+              rs.getString("pay_in_ether_public_key"), rs.getString("email"),
+              creationDate != null ? creationDate.getTime() / 1000L : 0L));
+          if (batch.size() == BATCH_SIZE) {
+            investors += batch.size();
+            inFlight.add(pool.submit(derive(batch)));
+            batch = new ArrayList<>(BATCH_SIZE);
+            // Keep the pool busy, but don't read the whole table ahead of the monitors
+            if (inFlight.size() > parallelism)
+              register(inFlight.poll().join());
+          }
+        }
+        if (!batch.isEmpty()) {
+          investors += batch.size();
+          inFlight.add(pool.submit(derive(batch)));
+        }
+      }
+      conn.commit();
+      while (!inFlight.isEmpty()) {
+        register(inFlight.poll().join());
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    int saved = addressStore.save();
+    LOG.info("Registered {} investors in {} ms with {} threads, {} addresses from store, "
+            + "{} newly stored", investors, System.currentTimeMillis() - start, parallelism,
+        storeHits.get(), saved);
+    return investors;
+  }
+
+  /**
+   * Registers the investors with a pay-in key that is not monitored yet, e.g. after notifications
+   * of new keys were missed. Only the new keys are derived, cached and registered with the
+   * monitors, the stored addresses are not loaded.
+   * @return The number of investors registered
+   */
+  int resync() throws SQLException {
+    long start = System.currentTimeMillis();
+    List<Investor> missing = new ArrayList<>();
+    int investors = 0;
+    try (
+        Connection conn = dataSource.getConnection();
+        PreparedStatement preparedStatement = conn.prepareStatement(""
+            + "SELECT pay_in_bitcoin_public_key, pay_in_ether_public_key, email, creation_date \n"
+            + "FROM investor");
+    ) {
+      conn.setAutoCommit(false); // Required for the fetch size to take effect
+      preparedStatement.setFetchSize(BATCH_SIZE);
+      try (ResultSet rs = preparedStatement.executeQuery()) {
+        while (rs.next()) {
+          investors++;
+          String bitcoinPublicKey = rs.getString("pay_in_bitcoin_public_key");
+          String etherPublicKey = rs.getString("pay_in_ether_public_key");
+          if (bitcoinPublicKey != null && !bitcoinMonitor.isMonitoredPublicKey(bitcoinPublicKey)
+              || etherPublicKey != null && !ethereumMonitor.isMonitoredPublicKey(etherPublicKey)) {
+            Timestamp creationDate = rs.getTimestamp("creation_date");
+            missing.add(new Investor(bitcoinPublicKey, etherPublicKey, rs.getString("email"),
+                creationDate != null ? creationDate.getTime() / 1000L : 0L));
+          }
+        }
+      }
+      conn.commit();
+    }
+    if (!missing.isEmpty()) {
+      register(derive(missing).invoke());
+      addressStore.save();
+    }
+    LOG.info("Resynced {} investors in {} ms, {} with new pay-in keys", investors,
+        System.currentTimeMillis() - start, missing.size());
+    return missing.size();
+  }
+
+  private DeriveAddresses derive(List<Investor> batch) {
+    return new DeriveAddresses(batch, 0, batch.size(), this::getBitcoinAddress,
+        this::getEtherAddress);
+  }
+
+  private Address getBitcoinAddress(String publicKey) {
+    byte[] hash160 = addressStore.get(bitcoinScheme, publicKey);
+    if (hash160 != null) {
+      storeHits.incrementAndGet();
+      return new Address(bitcoinMonitor.getNetworkParameters(), hash160);
+    }
+    Address address = bitcoinMonitor.deriveAddress(publicKey);
+    addressStore.put(bitcoinScheme, publicKey, address.getHash160());
+    return address;
+  }
+
+  private byte[] getEtherAddress(String publicKey) {
+    byte[] address = addressStore.get(DerivedAddressStore.ETHER_SCHEME, publicKey);
+    if (address != null) {
+      storeHits.incrementAndGet();
+      return address;
+    }
+    address = EthereumMonitor.deriveAddress(publicKey);
+    addressStore.put(DerivedAddressStore.ETHER_SCHEME, publicKey, address);
+    return address;
+  }
+
+  private void register(List<Investor> batch) {
+    Map<String, Address> bitcoinAddresses = new HashMap<>();
+    Map<String, byte[]> etherAddresses = new HashMap<>();
+    long creationTime = Long.MAX_VALUE;
+    for (Investor investor : batch) {
+      userService.cacheInvestor(investor.bitcoinPublicKey, investor.etherPublicKey,
+          investor.email);
+      if (investor.bitcoinAddress != null) {
+        bitcoinAddresses.put(investor.bitcoinPublicKey, investor.bitcoinAddress);
+        creationTime = Math.min(creationTime, investor.creationTime);
+      }
+      if (investor.etherAddress != null)
+        etherAddresses.put(investor.etherPublicKey, investor.etherAddress);
+    }
+    bitcoinMonitor.addMonitoredAddresses(bitcoinAddresses, creationTime);
+    ethereumMonitor.addMonitoredEtherAddresses(etherAddresses);
+  }
+
+  /**
+   * Derives the addresses of a range of investors, splitting the range until it is small.
+   * Completes with the list of all investors.
+   */
+  static class DeriveAddresses extends RecursiveTask<List<Investor>> {
+    private final List<Investor> investors;
+    private final int from;
+    private final int to;
+    private final Function<String, Address> bitcoinDerivation;
+    private final Function<String, byte[]> etherDerivation;
+
+    DeriveAddresses(List<Investor> investors, int from, int to,
+        Function<String, Address> bitcoinDerivation, Function<String, byte[]> etherDerivation) {
+      this.investors = investors;
+      this.from = from;
+      this.to = to;
+      this.bitcoinDerivation = bitcoinDerivation;
+      this.etherDerivation = etherDerivation;
+    }
+
+    @Override
+    protected List<Investor> compute() {
+      if (to - from > SPLIT_THRESHOLD) {
+        int middle = (from + to) >>> 1;
+        invokeAll(
+            new DeriveAddresses(investors, from, middle, bitcoinDerivation, etherDerivation),
+            new DeriveAddresses(investors, middle, to, bitcoinDerivation, etherDerivation));
+        return investors;
+      }
+      for (int i = from; i < to; i++) {
+        Investor investor = investors.get(i);
+        if (investor.bitcoinPublicKey != null) {
+          try {
+            investor.bitcoinAddress = bitcoinDerivation.apply(investor.bitcoinPublicKey);
+          } catch (RuntimeException e) {
+            LOG.error("Invalid Bitcoin public key {} of investor {}. {}",
+                investor.bitcoinPublicKey, investor.email, e.getMessage());
+          }
+        }
+        if (investor.etherPublicKey != null) {
+          try {
+            investor.etherAddress = etherDerivation.apply(investor.etherPublicKey);
+          } catch (RuntimeException e) {
+            LOG.error("Invalid Ethereum public key {} of investor {}. {}",
+                investor.etherPublicKey, investor.email, e.getMessage());
+          }
+        }
+      }
+      return investors;
+    }
+  }
+
+  static class Investor {
+    private final String bitcoinPublicKey;
+    private final String etherPublicKey;
+    private final String email;
+    private final long creationTime;
+    private Address bitcoinAddress;
+    private byte[] etherAddress;
+
+    Investor(String bitcoinPublicKey, String etherPublicKey, String email, long creationTime) {
+      this.bitcoinPublicKey = bitcoinPublicKey;
+      this.etherPublicKey = etherPublicKey;
+      this.email = email;
+      this.creationTime = creationTime;
+    }
+
+    Address getBitcoinAddress() {
+      return bitcoinAddress;
+    }
+
+    byte[] getEtherAddress() {
+      return etherAddress;
+    }
+  }
+}
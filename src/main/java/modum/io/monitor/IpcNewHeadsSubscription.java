@@ -0,0 +1,84 @@
+package modum.io.monitor;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.fasterxml.jackson.core.JsonParser;
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.function.LongConsumer;
+import jnr.unixsocket.UnixSocketAddress;
+import jnr.unixsocket.UnixSocketChannel;
+
+/**
+ * New heads subscription on a dedicated connection to the IPC socket of the node. A reader
+ * thread parses the JSON values pushed by the node.
+ */
+class IpcNewHeadsSubscription extends NewHeadsSubscription {
+  private final File path;
+  private volatile UnixSocketChannel channel;
+
+  IpcNewHeadsSubscription(String path, LongConsumer onHead) {
+    super(path, onHead);
+    this.path = new File(path);
+  }
+
+  @Override
+  void open() throws IOException {
+    UnixSocketChannel channel;
+    try {
+      channel = UnixSocketChannel.open(new UnixSocketAddress(path));
+    } catch (IOException e) {
+      throw new ConnectException("Could not connect to IPC socket " + path + ": "
+          + e.getMessage());
+    }
+    this.channel = channel;
+    Thread reader = new Thread(() -> read(channel), "ether-heads");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  @Override
+  void send(String message) throws IOException {
+    // Written to the channel directly, a stream would wait for the lock held by the reader
+    ByteBuffer buffer = ByteBuffer.wrap(message.getBytes(UTF_8));
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  @Override
+  void closeConnection() {
+    UnixSocketChannel channel = this.channel;
+    this.channel = null;
+    if (channel == null)
+      return;
+    try {
+      // Wakes up the reader, closing alone leaves it blocked
+      channel.socket().shutdownInput();
+    } catch (IOException e) {
+      // Already shut down
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // The connection is discarded anyway
+    }
+  }
+
+  private void read(UnixSocketChannel channel) {
+    String reason = "IPC socket " + path + " was closed by the node";
+    try (JsonParser parser = objectMapper.getFactory()
+        .createParser(Channels.newInputStream(channel))) {
+      while (parser.nextToken() != null && this.channel == channel) {
+        received(objectMapper.readTree(parser));
+      }
+    } catch (IOException | RuntimeException e) {
+      reason = e.getMessage();
+    }
+    if (this.channel == channel)
+      disconnected(reason);
+  }
+}
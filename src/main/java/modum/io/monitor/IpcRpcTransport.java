@@ -0,0 +1,141 @@
+package modum.io.monitor;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.nio.channels.Channels;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import jnr.unixsocket.UnixSocketAddress;
+import jnr.unixsocket.UnixSocketChannel;
+import jnr.unixsocket.UnixSocketOptions;
+import org.web3j.protocol.ObjectMapperFactory;
+
+/**
+ * JSON-RPC over the IPC socket of a node on the same host, e.g. geth.ipc. Avoids the TCP and
+ * HTTP overhead of each call.
+ *
+ * The node answers each request on the same connection, as a JSON value without any framing, so
+ * every connection has a streaming parser that reads exactly one value per request. Each
+ * connection is used by one request at a time. Connections are kept in a pool, and closed
+ * instead of returned to it after an error.
+ */
+class IpcRpcTransport implements RpcTransport {
+  private final static int READ_TIMEOUT_MS = 60_000;
+
+  private final File path;
+  private final ObjectMapper objectMapper = ObjectMapperFactory.getObjectMapper();
+  private final Semaphore permits;
+  private final BlockingQueue<Connection> idle = new LinkedBlockingQueue<>();
+  private volatile boolean closed = false;
+
+  IpcRpcTransport(String path, int maxConnections) {
+    this.path = new File(path);
+    this.permits = new Semaphore(maxConnections);
+  }
+
+  @Override
+  public <T> T send(String payload, Class<T> responseType) throws IOException {
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for an IPC connection");
+    }
+    try {
+      Connection connection = idle.poll();
+      if (connection != null) {
+        try {
+          return send(connection, payload, responseType);
+        } catch (IOException e) {
+          // The node may have closed the idle connection, e.g. after a restart. The requests are
+          // only reads, so they are safe to repeat on a new connection.
+        }
+      }
+      return send(connect(), payload, responseType);
+    } finally {
+      permits.release();
+    }
+  }
+
+  private <T> T send(Connection connection, String payload, Class<T> responseType)
+      throws IOException {
+    try {
+      T response = connection.send(payload, responseType);
+      if (closed)
+        connection.close();
+      else
+        idle.add(connection);
+      return response;
+    } catch (IOException | RuntimeException e) {
+      connection.close();
+      throw e;
+    }
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    Connection connection;
+    while ((connection = idle.poll()) != null) {
+      connection.close();
+    }
+  }
+
+  private Connection connect() throws IOException {
+    UnixSocketChannel channel;
+    try {
+      channel = UnixSocketChannel.open(new UnixSocketAddress(path));
+    } catch (IOException e) {
+      throw new ConnectException("Could not connect to IPC socket " + path + ": "
+          + e.getMessage());
+    }
+    try {
+      channel.setOption(UnixSocketOptions.SO_RCVTIMEO, READ_TIMEOUT_MS);
+      return new Connection(channel);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  private class Connection {
+    private final UnixSocketChannel channel;
+    private final OutputStream out;
+    private JsonParser parser;
+
+    private Connection(UnixSocketChannel channel) {
+      this.channel = channel;
+      this.out = Channels.newOutputStream(channel);
+    }
+
+    private <T> T send(String payload, Class<T> responseType) throws IOException {
+      out.write(payload.getBytes(UTF_8));
+      out.flush();
+      // Created after the first request, the parser blocks reading ahead to detect the encoding
+      if (parser == null)
+        parser = objectMapper.getFactory().createParser(Channels.newInputStream(channel));
+      if (parser.nextToken() == null)
+        throw new EOFException("IPC socket " + path + " was closed by the node");
+      return objectMapper.readValue(parser, responseType);
+    }
+
+    private void close() {
+      try {
+        if (parser != null)
+          parser.close();
+        channel.close();
+      } catch (IOException e) {
+        // The connection is discarded anyway
+      }
+    }
+  }
+}
@@ -0,0 +1,192 @@
+package modum.io.monitor;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import javax.sql.DataSource;
+
+/**
+ * Queue of confirmation mails in the table 'mail_outbox', so queued mails survive restarts.
+ * Mails are claimed for a lease time before they are sent. A mail that is claimed but neither
+ * sent nor rescheduled, e.g. because of a crash, becomes due again when its lease expires.
+ */
+class MailOutbox {
+  private final DataSource dataSource;
+  private final boolean hasTable;
+
+  /**
+   * @param createSchema Whether to create the table if it is missing
+   */
+  MailOutbox(DataSource dataSource, boolean createSchema) throws SQLException {
+    this.dataSource = dataSource;
+    if (createSchema)
+      createTable();
+    this.hasTable = createSchema || DatabaseSchema.hasTable(dataSource, "mail_outbox");
+  }
+
+  /**
+   * @return Whether the table exists. Without it, mails can't be queued in the outbox.
+   */
+  boolean isAvailable() {
+    return hasTable;
+  }
+
+  void enqueue(String email, String amount, String link) throws SQLException {
+    try (
+        Connection conn = dataSource.getConnection();
+        PreparedStatement preparedStatement = conn.prepareStatement(""
+            + "INSERT INTO mail_outbox (email, amount, link, attempts, next_attempt, creation_date) "
+            + "VALUES (?, ?, ?, 0, ?, ?)");
+    ) {
+      Timestamp now = Timestamp.from(Instant.now());
+      preparedStatement.setString(1, email);
+      preparedStatement.setString(2, amount);
+      preparedStatement.setString(3, link);
+      preparedStatement.setTimestamp(4, now);
+      preparedStatement.setTimestamp(5, now);
+      preparedStatement.executeUpdate();
+    }
+  }
+
+  /**
+   * Claims the oldest due mails for leaseSeconds
+   */
+  List<OutboxMail> claimDue(int limit, long leaseSeconds) throws SQLException {
+    List<OutboxMail> mails = new ArrayList<>();
+    try (
+        Connection conn = dataSource.getConnection();
+        PreparedStatement preparedStatement = conn.prepareStatement(""
+            + "UPDATE mail_outbox SET next_attempt = ? WHERE id IN ( \n"
+            + "  SELECT id FROM mail_outbox WHERE NOT failed AND next_attempt <= ? \n"
+            + "  ORDER BY id LIMIT ? FOR UPDATE SKIP LOCKED) \n"
+            + "RETURNING id, email, amount, link, attempts, creation_date");
+    ) {
+      Instant now = Instant.now();
+      preparedStatement.setTimestamp(1, Timestamp.from(now.plusSeconds(leaseSeconds)));
+      preparedStatement.setTimestamp(2, Timestamp.from(now));
+      preparedStatement.setInt(3, limit);
+      try (ResultSet rs = preparedStatement.executeQuery()) {
+        while (rs.next()) {
+          mails.add(new OutboxMail(rs.getLong("id"), rs.getString("email"),
+              rs.getString("amount"), rs.getString("link"), rs.getInt("attempts"),
+              rs.getTimestamp("creation_date").getTime()));
+        }
+      }
+    }
+    mails.sort((a, b) -> Long.compare(a.getId(), b.getId()));
+    return mails;
+  }
+
+  void delete(long id) throws SQLException {
+    try (
+        Connection conn = dataSource.getConnection();
+        PreparedStatement preparedStatement = conn.prepareStatement(""
+            + "DELETE FROM mail_outbox WHERE id = ?");
+    ) {
+      preparedStatement.setLong(1, id);
+      preparedStatement.executeUpdate();
+    }
+  }
+
+  /**
+   * Records a failed attempt. The mail is due again at nextAttempt, or never if failed is true.
+   */
+  void reschedule(long id, int attempts, Instant nextAttempt, String error, boolean failed)
+      throws SQLException {
+    try (
+        Connection conn = dataSource.getConnection();
+        PreparedStatement preparedStatement = conn.prepareStatement(""
+            + "UPDATE mail_outbox SET attempts = ?, next_attempt = ?, last_error = ?, failed = ? "
+            + "WHERE id = ?");
+    ) {
+      preparedStatement.setInt(1, attempts);
+      preparedStatement.setTimestamp(2, Timestamp.from(nextAttempt));
+      preparedStatement.setString(3, error);
+      preparedStatement.setBoolean(4, failed);
+      preparedStatement.setLong(5, id);
+      preparedStatement.executeUpdate();
+    }
+  }
+
+  private void createTable() throws SQLException {
+    try (
+        Connection conn = dataSource.getConnection();
+        Statement statement = conn.createStatement();
+    ) {
+      statement.execute(""
+          + "CREATE TABLE IF NOT EXISTS mail_outbox (\n"
+          + "  id BIGSERIAL PRIMARY KEY,\n"
+          + "  email VARCHAR(255) NOT NULL,\n"
+          + "  amount VARCHAR(255) NOT NULL,\n"
+          + "  link VARCHAR(1024) NOT NULL,\n"
+          + "  attempts INT NOT NULL,\n"
+          + "  next_attempt TIMESTAMP NOT NULL,\n"
+          + "  creation_date TIMESTAMP NOT NULL,\n"
+          + "  last_error TEXT,\n"
+          + "  failed BOOLEAN NOT NULL DEFAULT FALSE\n"
+          + ")");
+    }
+  }
+
+  /**
+   * A queued confirmation mail. Mails that could not be stored in the outbox have no id.
+   */
+  static class OutboxMail {
+    private final Long id;
+    private final String email;
+    private final String amount;
+    private final String link;
+    private final long creationTime;
+    private int attempts;
+    private long nextAttempt = 0L;
+
+    OutboxMail(Long id, String email, String amount, String link, int attempts,
+        long creationTime) {
+      this.id = id;
+      this.email = email;
+      this.amount = amount;
+      this.link = link;
+      this.attempts = attempts;
+      this.creationTime = creationTime;
+    }
+
+    Long getId() {
+      return id;
+    }
+
+    String getEmail() {
+      return email;
+    }
+
+    String getAmount() {
+      return amount;
+    }
+
+    String getLink() {
+      return link;
+    }
+
+    int getAttempts() {
+      return attempts;
+    }
+
+    long getCreationTime() {
+      return creationTime;
+    }
+
+    long getNextAttempt() {
+      return nextAttempt;
+    }
+
+    void setRetry(int attempts, long nextAttempt) {
+      this.attempts = attempts;
+      this.nextAttempt = nextAttempt;
+    }
+  }
+}
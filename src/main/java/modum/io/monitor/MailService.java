@@ -1,28 +1,81 @@
 package modum.io.monitor;
 
 import java.io.IOException;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.mail.MessagingException;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+import javax.sql.DataSource;
+import modum.io.monitor.MailOutbox.OutboxMail;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.core.io.ByteArrayResource;
-import org.springframework.core.io.InputStreamSource;
 import org.springframework.mail.javamail.JavaMailSenderImpl;
 import org.springframework.mail.javamail.MimeMessageHelper;
-import org.thymeleaf.TemplateEngine;
-import org.thymeleaf.context.Context;
-import org.thymeleaf.templateresolver.ClassLoaderTemplateResolver;
-import spark.utils.IOUtils;
 
+/**
+ * Sends the confirmation mails for pay-ins. Mails are queued in the mail outbox and sent by a
+ * pool of worker threads, each of which keeps its SMTP connection open across mails.
+ * A dispatcher thread only claims as many due mails as the workers have room for, and failed
+ * mails are retried with exponential backoff. The mail content is filled into a pre-rendered
+ * {@link ConfirmationMailTemplate}.
+ *
+ * If a mail cannot be stored in the outbox, or the outbox table is missing, it is kept in memory
+ * instead.
+ */
 public class MailService {
   private static Logger LOG = LoggerFactory.getLogger(MailService.class);
+  private final static int MAX_ATTEMPTS = 8;
+  private final static long BASE_BACKOFF_SECONDS = 30L;
+  private final static long MAX_BACKOFF_SECONDS = 3600L;
+  private final static long LEASE_SECONDS = 600L;
+  private final static long MAX_IDLE_MILLIS = 30_000L;
+  private final static int QUEUE_SIZE_PER_WORKER = 10;
+  private final static Metrics.Timer SEND_TIMER = Metrics.timer("mail_send_seconds",
+      "Time to send a confirmation mail to the mail server");
+  private final static Metrics.Timer DELIVERY_TIMER = Metrics.timer("mail_delivery_delay_seconds",
+      "Time from queueing a confirmation mail until it was sent");
+  private final static Metrics.Counter SEND_ERRORS = Metrics.counter("mail_send_errors_total",
+      "Failed attempts to send a confirmation mail");
 
   private final JavaMailSenderImpl javaMailSender;
-  private final TemplateEngine templateEngine;
+  private final ConfirmationMailTemplate template;
   private final String bccAddress;
+  private final String host;
+  private final int port;
+  private final String user;
+  private final String password;
 
+  private final MailOutbox outbox;
+  private final BlockingQueue<OutboxMail> sendQueue;
+  private final Queue<OutboxMail> memoryBacklog = new ConcurrentLinkedQueue<>();
+  private final Semaphore wakeUp = new Semaphore(0);
+  private final List<Thread> threads = new ArrayList<>();
+  private volatile boolean stop = false;
+
+  private final AtomicLong sentCount = new AtomicLong();
+  private final AtomicLong failedCount = new AtomicLong();
+  private final AtomicLong sendMillisTotal = new AtomicLong();
+  private volatile long lastDeliveryDelayMillis = 0L;
+
+  /**
+   * @param workers Number of threads sending mails, each with its own SMTP connection
+   * @param createSchema Whether to create the outbox table if it is missing
+   */
   public MailService(String host, String port, String user, String password,
-      String bccAddress) {
+      String bccAddress, DataSource dataSource, int workers, boolean createSchema)
+      throws SQLException, IOException {
     javaMailSender = new JavaMailSenderImpl();
     javaMailSender.setUsername(user);
     javaMailSender.setPassword(password);
@@ -35,38 +88,242 @@ public class MailService {
     properties.setProperty("mail.smtp.port", port);
     properties.setProperty("mail.smtp.ssl.trust", "*");
     javaMailSender.setJavaMailProperties(properties);
-    templateEngine = new TemplateEngine();
-    templateEngine.setTemplateResolver(new ClassLoaderTemplateResolver());
+    template = new ConfirmationMailTemplate();
     this.bccAddress = bccAddress;
+    this.host = host;
+    this.port = Integer.parseInt(port);
+    this.user = user;
+    this.password = password;
+
+    this.outbox = new MailOutbox(dataSource, createSchema);
+    if (!outbox.isAvailable())
+      LOG.warn("Table mail_outbox is missing, queued mails are kept in memory only");
+    this.sendQueue = new ArrayBlockingQueue<>(workers * QUEUE_SIZE_PER_WORKER);
+    threads.add(new Thread(this::dispatch, "mail-dispatcher"));
+    for (int i = 0; i < workers; i++) {
+      threads.add(new Thread(this::work, "mail-worker-" + i));
+    }
+    threads.forEach(thread -> {
+      thread.setDaemon(true);
+      thread.start();
+    });
+
+    Metrics.gauge("mail_queue_depth", "Mails waiting for a worker", this::getQueueDepth);
+    Metrics.counter("mail_sent_total", "Confirmation mails sent", this::getSentCount);
+    Metrics.counter("mail_failed_total", "Confirmation mails given up after all attempts",
+        this::getFailedCount);
   }
 
+  /**
+   * Queues a confirmation mail. Returns without waiting for the mail server.
+   */
   public void sendConfirmationMail(String email, String amount, String link) {
-    LOG.info("Sending confirmation mail to {}: payment of {}", email, amount);
+    if (email == null) {
+      LOG.error("No email address for confirmation mail of payment of {}", amount);
+      return;
+    }
+    LOG.info("Queueing confirmation mail to {}: payment of {}", email, amount);
+    if (!outbox.isAvailable()) {
+      memoryBacklog.add(new OutboxMail(null, email, amount, link, 0, System.currentTimeMillis()));
+      wakeUp.release();
+      return;
+    }
     try {
-      MimeMessageHelper messageHelper = new MimeMessageHelper(javaMailSender.createMimeMessage(), true, "UTF-8");
-      messageHelper.setSubject("Payment received");
-      messageHelper.setFrom("token@modum.io");
-      messageHelper.setTo(email);
-      messageHelper.setBcc(bccAddress);
-      setEmailContent(messageHelper, amount, link);
-      javaMailSender.send(messageHelper.getMimeMessage());
-    } catch (MessagingException | IOException e) {
-      LOG.error("Could not send email to {}. Error: {} {}", email, e.getMessage(), e.getCause());
+      outbox.enqueue(email, amount, link);
+    } catch (SQLException e) {
+      LOG.error("Could not store mail to {} in outbox, keeping it in memory. {} {}",
+          email, e.getMessage(), e.getCause());
+      memoryBacklog.add(new OutboxMail(null, email, amount, link, 0, System.currentTimeMillis()));
     }
+    wakeUp.release();
   }
 
   public void setEmailContent(MimeMessageHelper messageHelper, String amount, String link)
-      throws MessagingException, IOException {
-    Context context = new Context();
-    context.setVariable("amount", amount);
-    context.setVariable("link", link);
-    String html5Content = templateEngine.process("templates/confirmation_email.html", context);
-    messageHelper.setText(html5Content, true);
-
-    final InputStreamSource modumLogoImage =
-        new ByteArrayResource(IOUtils.toByteArray(this.getClass().getResourceAsStream(
-            "/templates/modum_logo.png")));
-    messageHelper.addInline("modumLogo", modumLogoImage, "image/png");
+      throws MessagingException {
+    template.setContent(messageHelper, amount, link);
+  }
+
+  /**
+   * @return Number of mails waiting for a worker, not counting mails still in the outbox
+   */
+  public int getQueueDepth() {
+    return sendQueue.size() + memoryBacklog.size();
+  }
+
+  public long getSentCount() {
+    return sentCount.get();
+  }
+
+  public long getFailedCount() {
+    return failedCount.get();
+  }
+
+  /**
+   * @return Average time the mail server took per mail, in milliseconds
+   */
+  public long getAverageSendMillis() {
+    long sent = sentCount.get();
+    return sent > 0 ? sendMillisTotal.get() / sent : 0L;
+  }
+
+  /**
+   * @return Time between queueing and sending of the last sent mail, in milliseconds
+   */
+  public long getLastDeliveryDelayMillis() {
+    return lastDeliveryDelayMillis;
+  }
+
+  public void stop() {
+    stop = true;
+    wakeUp.release();
+    for (Thread thread : threads) {
+      try {
+        thread.join(10_000L);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+    if (!memoryBacklog.isEmpty())
+      LOG.error("{} mails that are not in the outbox were not sent", memoryBacklog.size());
+  }
+
+  /**
+   * Moves due mails into the send queue, as long as there is room
+   */
+  private void dispatch() {
+    while (!stop) {
+      try {
+        wakeUp.tryAcquire(1, TimeUnit.SECONDS);
+        wakeUp.drainPermits();
+      } catch (InterruptedException e) {
+        return;
+      }
+
+      long now = System.currentTimeMillis();
+      Iterator<OutboxMail> backlog = memoryBacklog.iterator();
+      while (backlog.hasNext() && sendQueue.remainingCapacity() > 0) {
+        OutboxMail mail = backlog.next();
+        if (mail.getNextAttempt() <= now && sendQueue.offer(mail))
+          backlog.remove();
+      }
+
+      int free = sendQueue.remainingCapacity();
+      if (free == 0 || !outbox.isAvailable())
+        continue;
+      try {
+        for (OutboxMail mail : outbox.claimDue(free, LEASE_SECONDS)) {
+          // Only the dispatcher adds outbox mails, so there is room. Otherwise the lease expires.
+          sendQueue.offer(mail);
+        }
+      } catch (SQLException e) {
+        LOG.error("Could not read mail outbox. {} {}", e.getMessage(), e.getCause());
+      }
+    }
+  }
+
+  private void work() {
+    Transport transport = null;
+    long lastUsed = 0L;
+    while (!stop) {
+      OutboxMail mail;
+      try {
+        mail = sendQueue.poll(1, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        break;
+      }
+      if (mail == null)
+        continue;
+
+      LOG.info("Sending confirmation mail to {}: payment of {}", mail.getEmail(), mail.getAmount());
+      long start = System.currentTimeMillis();
+      try {
+        MimeMessage message = createMessage(mail);
+        // Servers drop idle connections, so check connections that were not used for a while
+        if (transport == null
+            || (start - lastUsed > MAX_IDLE_MILLIS && !transport.isConnected())) {
+          close(transport);
+          transport = javaMailSender.getSession().getTransport("smtp");
+          transport.connect(host, port, user, password);
+        }
+        transport.sendMessage(message, message.getAllRecipients());
+        lastUsed = System.currentTimeMillis();
+        sent(mail, lastUsed - start);
+      } catch (MessagingException | RuntimeException e) {
+        // Runtime errors, e.g. from the template, must not end the worker either
+        LOG.error("Could not send email to {}. Error: {} {}", mail.getEmail(), e.getMessage(),
+            e.getCause());
+        SEND_ERRORS.increment();
+        close(transport);
+        transport = null;
+        retryLater(mail, e.getMessage());
+      }
+    }
+    close(transport);
+  }
+
+  private MimeMessage createMessage(OutboxMail mail) throws MessagingException {
+    MimeMessageHelper messageHelper = new MimeMessageHelper(javaMailSender.createMimeMessage(), true, "UTF-8");
+    messageHelper.setSubject("Payment received");
+    messageHelper.setFrom("token@modum.io");
+    messageHelper.setTo(mail.getEmail());
+    messageHelper.setBcc(bccAddress);
+    setEmailContent(messageHelper, mail.getAmount(), mail.getLink());
+    MimeMessage message = messageHelper.getMimeMessage();
+    message.saveChanges();
+    return message;
+  }
+
+  private void sent(OutboxMail mail, long sendMillis) {
+    sentCount.incrementAndGet();
+    sendMillisTotal.addAndGet(sendMillis);
+    lastDeliveryDelayMillis = System.currentTimeMillis() - mail.getCreationTime();
+    SEND_TIMER.recordMillis(sendMillis);
+    DELIVERY_TIMER.recordMillis(lastDeliveryDelayMillis);
+    if (mail.getId() == null)
+      return;
+    try {
+      outbox.delete(mail.getId());
+    } catch (SQLException e) {
+      LOG.error("Could not remove sent mail {} from outbox, it may be sent again. {} {}",
+          mail.getId(), e.getMessage(), e.getCause());
+    }
+  }
+
+  private void retryLater(OutboxMail mail, String error) {
+    int attempts = mail.getAttempts() + 1;
+    boolean failed = attempts >= MAX_ATTEMPTS;
+    long backoffSeconds = Math.min(BASE_BACKOFF_SECONDS << Math.min(attempts - 1, 20),
+        MAX_BACKOFF_SECONDS);
+    Instant nextAttempt = Instant.now().plusSeconds(backoffSeconds);
+    if (failed) {
+      failedCount.incrementAndGet();
+      LOG.error("Giving up on email to {} after {} attempts", mail.getEmail(), attempts);
+    }
+
+    if (mail.getId() == null) {
+      if (!failed) {
+        mail.setRetry(attempts, nextAttempt.toEpochMilli());
+        memoryBacklog.add(mail);
+      }
+      return;
+    }
+    try {
+      outbox.reschedule(mail.getId(), attempts, nextAttempt, error, failed);
+    } catch (SQLException e) {
+      // The mail is retried when its lease expires
+      LOG.error("Could not reschedule mail {}. {} {}", mail.getId(), e.getMessage(), e.getCause());
+    }
+  }
+
+  private static void close(Transport transport) {
+    if (transport == null)
+      return;
+    try {
+      transport.close();
+    } catch (MessagingException e) {
+      LOG.debug("Could not close mail transport: {}", e.getMessage());
+    }
   }
 
 }
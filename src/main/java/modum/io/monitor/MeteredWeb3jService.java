@@ -0,0 +1,49 @@
+package modum.io.monitor;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.web3j.protocol.Service;
+import org.web3j.protocol.Web3jService;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.Response;
+
+/**
+ * Records the latency and errors of every JSON-RPC call to the ethereum node, per method
+ */
+class MeteredWeb3jService extends Service {
+  private final Web3jService service;
+  private final Map<String, Metrics.Timer> timers = new ConcurrentHashMap<>();
+  private final Map<String, Metrics.Counter> errors = new ConcurrentHashMap<>();
+
+  MeteredWeb3jService(Web3jService service) {
+    this.service = service;
+  }
+
+  @Override
+  public <T extends Response> T send(Request request, Class<T> responseType) throws IOException {
+    String method = request.getMethod();
+    long start = System.nanoTime();
+    try {
+      T response = service.send(request, responseType);
+      if (response.hasError())
+        errors.computeIfAbsent(method, MeteredWeb3jService::errorCounter).increment();
+      return response;
+    } catch (IOException | RuntimeException e) {
+      errors.computeIfAbsent(method, MeteredWeb3jService::errorCounter).increment();
+      throw e;
+    } finally {
+      timers.computeIfAbsent(method, MeteredWeb3jService::timer).recordSince(start);
+    }
+  }
+
+  static Metrics.Timer timer(String method) {
+    return Metrics.timer("ether_rpc_seconds", "Latency of JSON-RPC calls to the ethereum node",
+        "method", method);
+  }
+
+  static Metrics.Counter errorCounter(String method) {
+    return Metrics.counter("ether_rpc_errors_total",
+        "JSON-RPC calls to the ethereum node that failed or returned an error", "method", method);
+  }
+}
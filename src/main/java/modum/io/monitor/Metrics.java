@@ -0,0 +1,189 @@
+package modum.io.monitor;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Registry of the metrics served in the Prometheus text format on /metrics.
+ *
+ * Timers record into HdrHistogram recorders and counters into LongAdders, so recording neither
+ * locks nor allocates. Timers are exported as summaries. Their quantiles cover the interval since
+ * the previous scrape, the sum and count all recordings since the start. Gauges and function
+ * counters read their value when scraped.
+ *
+ * Metrics are registered once, typically in a static field or constructor, with the name
+ * without the 'tokenapp_' prefix and optional label name/value pairs.
+ */
+final class Metrics {
+  private final static String PREFIX = "tokenapp_";
+  private final static double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+  private final static long MAX_MICROS = TimeUnit.HOURS.toMicros(1);
+
+  private final static Map<String, Family> FAMILIES = new ConcurrentSkipListMap<>();
+
+  private Metrics() {
+  }
+
+  /**
+   * @param labels Label name/value pairs
+   */
+  static Timer timer(String name, String help, String... labels) {
+    return (Timer) family(name, help, "summary")
+        .children.computeIfAbsent(labels(labels), key -> new Timer());
+  }
+
+  static Counter counter(String name, String help, String... labels) {
+    return (Counter) family(name, help, "counter")
+        .children.computeIfAbsent(labels(labels), key -> new Counter());
+  }
+
+  /**
+   * Registers a counter whose value is read from the supplier, replacing any earlier one
+   */
+  static void counter(String name, String help, LongSupplier value, String... labels) {
+    family(name, help, "counter").children.put(labels(labels), (Metric) (out, fullName, set) ->
+        sample(out, fullName, set, value.getAsLong()));
+  }
+
+  /**
+   * Registers a gauge whose value is read from the supplier, replacing any earlier one
+   */
+  static void gauge(String name, String help, DoubleSupplier value, String... labels) {
+    family(name, help, "gauge").children.put(labels(labels), (Metric) (out, fullName, set) ->
+        sample(out, fullName, set, value.getAsDouble()));
+  }
+
+  /**
+   * @return All metrics in the Prometheus text format
+   */
+  static String scrape() {
+    StringBuilder out = new StringBuilder(4096);
+    FAMILIES.forEach((name, family) -> {
+      String fullName = PREFIX + name;
+      out.append("# HELP ").append(fullName).append(' ').append(family.help).append('\n');
+      out.append("# TYPE ").append(fullName).append(' ').append(family.type).append('\n');
+      family.children.forEach((labels, metric) -> metric.write(out, fullName, labels));
+    });
+    return out.toString();
+  }
+
+  private static Family family(String name, String help, String type) {
+    Family family = FAMILIES.computeIfAbsent(name, key -> new Family(help, type));
+    if (!family.type.equals(type))
+      throw new IllegalArgumentException("Metric " + name + " is already a " + family.type);
+    return family;
+  }
+
+  private static String labels(String[] labels) {
+    if (labels.length % 2 != 0)
+      throw new IllegalArgumentException("Labels must be name/value pairs");
+    StringBuilder set = new StringBuilder();
+    for (int i = 0; i < labels.length; i += 2) {
+      if (set.length() > 0)
+        set.append(',');
+      set.append(labels[i]).append("=\"").append(labels[i + 1]
+          .replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+    }
+    return set.toString();
+  }
+
+  private static void sample(StringBuilder out, String name, String labels, double value) {
+    out.append(name);
+    if (!labels.isEmpty())
+      out.append('{').append(labels).append('}');
+    out.append(' ').append(format(value)).append('\n');
+  }
+
+  private static String format(double value) {
+    if (Double.isNaN(value))
+      return "NaN";
+    if (value == (long) value)
+      return Long.toString((long) value);
+    return Double.toString(value);
+  }
+
+  private static class Family {
+    private final String help;
+    private final String type;
+    private final Map<String, Metric> children = new ConcurrentSkipListMap<>();
+
+    private Family(String help, String type) {
+      this.help = help;
+      this.type = type;
+    }
+  }
+
+  private interface Metric {
+    void write(StringBuilder out, String name, String labels);
+  }
+
+  /**
+   * Latency distribution, with a resolution of 1 microsecond up to 1 hour
+   */
+  static class Timer implements Metric {
+    private final Recorder recorder = new Recorder(MAX_MICROS, 2);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+    private Histogram interval; // Recycled between scrapes, guarded by 'this'
+
+    private Timer() {
+    }
+
+    /**
+     * @param startNanos Start time from System.nanoTime()
+     */
+    void recordSince(long startNanos) {
+      recordNanos(System.nanoTime() - startNanos);
+    }
+
+    void recordNanos(long nanos) {
+      nanos = Math.max(nanos, 0L);
+      recorder.recordValue(Math.min(nanos / 1000L, MAX_MICROS));
+      count.increment();
+      sumNanos.add(nanos);
+    }
+
+    void recordMillis(long millis) {
+      recordNanos(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    @Override
+    public synchronized void write(StringBuilder out, String name, String labels) {
+      interval = recorder.getIntervalHistogram(interval);
+      String separator = labels.isEmpty() ? "" : ",";
+      for (double quantile : QUANTILES) {
+        double value = interval.getTotalCount() > 0
+            ? interval.getValueAtPercentile(quantile * 100.0) / 1e6 : Double.NaN;
+        sample(out, name, labels + separator + "quantile=\"" + quantile + "\"", value);
+      }
+      sample(out, name + "_sum", labels, sumNanos.sum() / 1e9);
+      sample(out, name + "_count", labels, count.sum());
+    }
+  }
+
+  static class Counter implements Metric {
+    private final LongAdder count = new LongAdder();
+
+    private Counter() {
+    }
+
+    void increment() {
+      count.increment();
+    }
+
+    void add(long value) {
+      count.add(value);
+    }
+
+    @Override
+    public void write(StringBuilder out, String name, String labels) {
+      sample(out, name, labels, count.sum());
+    }
+  }
+}
@@ -0,0 +1,129 @@
+package modum.io.monitor;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.LongConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.web3j.protocol.ObjectMapperFactory;
+
+/**
+ * Subscription to the headers of new blocks, eth_subscribe("newHeads"), on a connection the node
+ * pushes them to: its IPC socket or a WebSocket. Reports the number of each new head to the
+ * passed-in consumer, on the thread receiving from the connection.
+ *
+ * After the connection is lost, isConnected() is false until connect() succeeded again. Heads
+ * pushed in the meantime are lost, the caller polls the head instead.
+ */
+abstract class NewHeadsSubscription implements Closeable {
+  private final static Logger LOG = LoggerFactory.getLogger(NewHeadsSubscription.class);
+  final static long CONNECT_TIMEOUT_MS = 10_000L;
+  private final static String SUBSCRIBE =
+      "{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"eth_subscribe\",\"params\":[\"newHeads\"]}";
+
+  final ObjectMapper objectMapper = ObjectMapperFactory.getObjectMapper();
+  private final String name;
+  private final LongConsumer onHead;
+  private volatile CompletableFuture<String> confirmation = new CompletableFuture<>();
+  private volatile boolean connected = false;
+
+  NewHeadsSubscription(String url, LongConsumer onHead) {
+    this.name = url.replaceFirst("//[^/@]*@", "//"); // Without credentials
+    this.onHead = onHead;
+  }
+
+  /**
+   * @param url WebSocket URL of the node (ws:// or wss://), or the filesystem path of its IPC
+   * socket
+   */
+  static NewHeadsSubscription create(String url, LongConsumer onHead) {
+    if (RpcTransport.isIpc(url))
+      return new IpcNewHeadsSubscription(url.startsWith("file://") ? url.substring(7) : url,
+          onHead);
+    return new WebSocketNewHeadsSubscription(url, onHead);
+  }
+
+  /**
+   * Opens a new connection and subscribes. Returns once the node confirmed the subscription.
+   */
+  void connect() throws IOException {
+    closeConnection();
+    CompletableFuture<String> confirmation = new CompletableFuture<>();
+    this.confirmation = confirmation;
+    open();
+    String subscription;
+    try {
+      send(SUBSCRIBE);
+      subscription = confirmation.get(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      closeConnection();
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while subscribing to new heads");
+    } catch (ExecutionException | TimeoutException | IOException e) {
+      closeConnection();
+      throw new IOException("Could not subscribe to new heads on " + name + ": "
+          + (e instanceof ExecutionException ? e.getCause().getMessage() : e.getMessage()));
+    }
+    connected = true;
+    LOG.info("Subscribed to new ether heads on {}, subscription {}", name, subscription);
+  }
+
+  boolean isConnected() {
+    return connected;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+
+  @Override
+  public void close() {
+    connected = false;
+    closeConnection();
+  }
+
+  /**
+   * Opens the connection and starts receiving from it
+   */
+  abstract void open() throws IOException;
+
+  abstract void send(String message) throws IOException;
+
+  abstract void closeConnection();
+
+  /**
+   * Handles a message received on the current connection
+   */
+  void received(JsonNode message) {
+    if (message.has("id")) {
+      JsonNode error = message.path("error");
+      if (error.isMissingNode() || error.isNull())
+        confirmation.complete(message.path("result").asText());
+      else
+        confirmation.completeExceptionally(new IOException(error.path("message").asText()));
+    } else if ("eth_subscription".equals(message.path("method").asText())) {
+      String number = message.path("params").path("result").path("number").asText(null);
+      if (number != null)
+        onHead.accept(Long.decode(number));
+    }
+  }
+
+  /**
+   * Called when the current connection was closed or failed
+   */
+  void disconnected(String reason) {
+    confirmation.completeExceptionally(new IOException(reason));
+    if (connected) {
+      connected = false;
+      LOG.warn("Lost subscription to new ether heads on {}: {}", name, reason);
+    }
+  }
+}
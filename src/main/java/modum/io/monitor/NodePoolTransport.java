@@ -0,0 +1,297 @@
+package modum.io.monitor;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.web3j.protocol.core.methods.response.EthBlockNumber;
+
+/**
+ * Sends each request to the healthiest of several ethereum nodes. Nodes that are reachable and
+ * at most MAX_HEAD_LAG blocks behind the highest head are healthy, and the one with the lowest
+ * latency is tried first. The heads are checked every HEALTH_CHECK_MS.
+ *
+ * If a node doesn't answer within its p99 latency, the request is also sent to the next node,
+ * and the first answer wins. If a node fails, the request is sent to the next node. All requests
+ * of the monitor only read from the chain, so sending them twice is safe. The slower answer of a
+ * hedged request is discarded.
+ */
+class NodePoolTransport implements RpcTransport {
+  private final static Logger LOG = LoggerFactory.getLogger(NodePoolTransport.class);
+  private final static long HEALTH_CHECK_MS = 5_000L;
+  private final static long MAX_HEAD_LAG = 1L;
+  private final static int MIN_HEDGE_SAMPLES = 50;
+  private final static long MAX_MICROS = TimeUnit.MINUTES.toMicros(5);
+  private final static double LATENCY_WEIGHT = 0.2;
+  private final static String BLOCK_NUMBER =
+      "{\"jsonrpc\":\"2.0\",\"id\":0,\"method\":\"eth_blockNumber\",\"params\":[]}";
+  private final static Metrics.Counter HEDGED = Metrics.counter("ether_hedged_requests_total",
+      "Requests also sent to a second ethereum node after the p99 latency of the first");
+  private final static Metrics.Counter HEDGE_WINS = Metrics.counter("ether_hedge_wins_total",
+      "Hedged requests answered first by the second ethereum node");
+  private final static Metrics.Counter FAILOVERS = Metrics.counter("ether_failovers_total",
+      "Requests sent to another ethereum node after the first failed");
+
+  private final List<Node> nodes = new ArrayList<>();
+  private final ExecutorService executor;
+  private final ScheduledExecutorService healthCheck;
+
+  NodePoolTransport(List<String> urls, int maxConnections) {
+    for (String url : urls) {
+      nodes.add(new Node(url, RpcTransport.create(url, maxConnections)));
+    }
+    AtomicInteger threadCount = new AtomicInteger();
+    this.executor = Executors.newCachedThreadPool(runnable -> {
+      Thread thread = new Thread(runnable, "ether-node-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.healthCheck = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "ether-node-health");
+      thread.setDaemon(true);
+      return thread;
+    });
+    healthCheck.scheduleWithFixedDelay(this::checkHealth, 0L, HEALTH_CHECK_MS,
+        TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public <T> T send(String payload, Class<T> responseType) throws IOException {
+    boolean batch = payload.startsWith("[");
+    List<Node> ranked = rank();
+    BlockingQueue<Attempt<T>> completed = new LinkedBlockingQueue<>();
+    Node primary = ranked.get(0);
+    Node hedge = null;
+    int next = 1;
+    int inFlight = 1;
+    boolean allConnectFailures = true;
+    Exception failure = null;
+    submit(primary, payload, responseType, batch, completed);
+    long hedgeDelay = ranked.size() > 1 ? primary.getHedgeDelayNanos(batch) : -1L;
+    boolean canHedge = hedgeDelay >= 0;
+
+    while (true) {
+      Attempt<T> attempt;
+      try {
+        attempt = canHedge
+            ? completed.poll(hedgeDelay, TimeUnit.NANOSECONDS) : completed.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for the ethereum node");
+      }
+
+      if (attempt == null) {
+        // Slower than the p99 of the node, ask the next one as well
+        hedge = ranked.get(next++);
+        canHedge = false;
+        HEDGED.increment();
+        submit(hedge, payload, responseType, batch, completed);
+        inFlight++;
+        continue;
+      }
+      inFlight--;
+      if (attempt.error == null) {
+        if (attempt.node == hedge)
+          HEDGE_WINS.increment();
+        return attempt.response;
+      }
+
+      failure = attempt.error;
+      allConnectFailures &= failure instanceof ConnectException;
+      if (inFlight == 0) {
+        if (next >= ranked.size())
+          break;
+        FAILOVERS.increment();
+        canHedge = false;
+        submit(ranked.get(next++), payload, responseType, batch, completed);
+        inFlight++;
+      }
+    }
+
+    if (allConnectFailures)
+      throw new ConnectException("Could not connect to any ethereum fullnode: "
+          + failure.getMessage());
+    if (failure instanceof IOException)
+      throw (IOException) failure;
+    throw new IOException(failure.getMessage(), failure);
+  }
+
+  @Override
+  public void close() throws IOException {
+    healthCheck.shutdownNow();
+    executor.shutdownNow();
+    for (Node node : nodes) {
+      node.transport.close();
+    }
+  }
+
+  /**
+   * @return The nodes, healthy nodes with the lowest latency first
+   */
+  private List<Node> rank() {
+    long maxHead = -1L;
+    for (Node node : nodes) {
+      if (node.up)
+        maxHead = Math.max(maxHead, node.head);
+    }
+    long minHead = maxHead - MAX_HEAD_LAG;
+    List<Node> ranked = new ArrayList<>(nodes);
+    ranked.sort(Comparator.comparing((Node node) -> !node.up)
+        .thenComparing(node -> node.head < minHead)
+        .thenComparingDouble(node -> node.latencyMillis));
+    return ranked;
+  }
+
+  private <T> void submit(Node node, String payload, Class<T> responseType, boolean batch,
+      BlockingQueue<Attempt<T>> completed) {
+    executor.execute(() -> {
+      long start = System.nanoTime();
+      try {
+        T response = node.transport.send(payload, responseType);
+        node.succeeded(batch, System.nanoTime() - start);
+        completed.add(new Attempt<>(node, response, null));
+      } catch (Exception e) {
+        node.failed(e);
+        completed.add(new Attempt<>(node, null, e));
+      }
+    });
+  }
+
+  private void checkHealth() {
+    for (Node node : nodes) {
+      node.updateHedgeDelays();
+      if (node.checking.compareAndSet(false, true))
+        executor.execute(node::checkHead);
+    }
+  }
+
+  private static class Attempt<T> {
+    private final Node node;
+    private final T response;
+    private final Exception error;
+
+    private Attempt(Node node, T response, Exception error) {
+      this.node = node;
+      this.response = response;
+      this.error = error;
+    }
+  }
+
+  private static class Node {
+    private final String name;
+    private final RpcTransport transport;
+    private final AtomicBoolean checking = new AtomicBoolean();
+    private final Recorder singleLatencies = new Recorder(MAX_MICROS, 2);
+    private final Recorder batchLatencies = new Recorder(MAX_MICROS, 2);
+    private final Metrics.Timer singleTimer;
+    private final Metrics.Timer batchTimer;
+    private final Metrics.Counter errors;
+    // Latencies since the p99 was last updated, used by the health check thread only
+    private final Histogram singleSamples = new Histogram(MAX_MICROS, 2);
+    private final Histogram batchSamples = new Histogram(MAX_MICROS, 2);
+    private Histogram singleWindow;
+    private Histogram batchWindow;
+    private volatile long singleP99Nanos = -1L;
+    private volatile long batchP99Nanos = -1L;
+    private volatile boolean up = true;
+    private volatile long head = -1L;
+    private volatile double latencyMillis = 0.0;
+
+    private Node(String url, RpcTransport transport) {
+      this.name = url.replaceFirst("//[^/@]*@", "//"); // Without credentials
+      this.transport = transport;
+      this.singleTimer = Metrics.timer("ether_node_request_seconds",
+          "Latency of requests to each ethereum node", "node", name, "kind", "single");
+      this.batchTimer = Metrics.timer("ether_node_request_seconds",
+          "Latency of requests to each ethereum node", "node", name, "kind", "batch");
+      this.errors = Metrics.counter("ether_node_errors_total",
+          "Failed requests to each ethereum node", "node", name);
+      Metrics.gauge("ether_node_up", "1 if the ethereum node is reachable, else 0",
+          () -> up ? 1 : 0, "node", name);
+      Metrics.gauge("ether_node_head_block", "Highest block number of each ethereum node",
+          () -> head, "node", name);
+      Metrics.gauge("ether_node_hedge_delay_seconds",
+          "Time after which a single request is also sent to another ethereum node",
+          () -> singleP99Nanos >= 0 ? singleP99Nanos / 1e9 : Double.NaN, "node", name);
+    }
+
+    /**
+     * @return The p99 latency of the node, or -1 if there are too few samples yet
+     */
+    private long getHedgeDelayNanos(boolean batch) {
+      return batch ? batchP99Nanos : singleP99Nanos;
+    }
+
+    private void succeeded(boolean batch, long nanos) {
+      if (batch) {
+        batchTimer.recordNanos(nanos);
+        batchLatencies.recordValue(Math.min(nanos / 1000L, MAX_MICROS));
+      } else {
+        singleTimer.recordNanos(nanos);
+        singleLatencies.recordValue(Math.min(nanos / 1000L, MAX_MICROS));
+        synchronized (this) {
+          latencyMillis += LATENCY_WEIGHT * (nanos / 1e6 - latencyMillis);
+        }
+      }
+      if (!up) {
+        up = true;
+        LOG.info("Ethereum node {} is reachable again", name);
+      }
+    }
+
+    private void failed(Exception e) {
+      errors.increment();
+      if (up) {
+        up = false;
+        LOG.warn("Ethereum node {} failed, using other nodes: {}", name, e.getMessage());
+      }
+    }
+
+    private void checkHead() {
+      long start = System.nanoTime();
+      try {
+        EthBlockNumber response = transport.send(BLOCK_NUMBER, EthBlockNumber.class);
+        if (response.hasError())
+          throw new IOException(response.getError().getMessage());
+        head = response.getBlockNumber().longValue();
+        succeeded(false, System.nanoTime() - start);
+      } catch (Exception e) {
+        failed(e);
+      } finally {
+        checking.set(false);
+      }
+    }
+
+    /**
+     * Updates the p99 latencies once there are MIN_HEDGE_SAMPLES new samples
+     */
+    private void updateHedgeDelays() {
+      singleWindow = singleLatencies.getIntervalHistogram(singleWindow);
+      singleSamples.add(singleWindow);
+      if (singleSamples.getTotalCount() >= MIN_HEDGE_SAMPLES) {
+        singleP99Nanos = singleSamples.getValueAtPercentile(99.0) * 1000L;
+        singleSamples.reset();
+      }
+      batchWindow = batchLatencies.getIntervalHistogram(batchWindow);
+      batchSamples.add(batchWindow);
+      if (batchSamples.getTotalCount() >= MIN_HEDGE_SAMPLES) {
+        batchP99Nanos = batchSamples.getValueAtPercentile(99.0) * 1000L;
+        batchSamples.reset();
+      }
+    }
+  }
+}
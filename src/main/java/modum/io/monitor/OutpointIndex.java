@@ -0,0 +1,186 @@
+package modum.io.monitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Set of processed bitcoin outpoints, i.e. (transaction hash, output index) pairs.
+ * Outpoints are stored in their compact 36-byte form in an open-addressing table inside a
+ * ByteBuffer, either off-heap or memory-mapped from a file so the set survives restarts.
+ *
+ * File layout: magic (8 bytes), capacity (4 bytes), size (4 bytes), followed by capacity slots of
+ * transaction hash (32 bytes), output index (4 bytes) and a used flag (4 bytes).
+ */
+class OutpointIndex {
+  private final static Logger LOG = LoggerFactory.getLogger(OutpointIndex.class);
+  private final static long MAGIC = 0x4F5554504F494E54L; // "OUTPOINT"
+  private final static int HEADER_SIZE = 16;
+  private final static int SLOT_SIZE = 40;
+  private final static int HASH_SIZE = 32;
+  private final static int INITIAL_CAPACITY = 4096;
+
+  private final File file;
+  private ByteBuffer buffer;
+  private int capacity;
+  private int size;
+
+  /**
+   * @param file File to memory-map the index from, or null to keep the index off-heap only
+   */
+  OutpointIndex(File file) throws IOException {
+    this.file = file;
+    if (file != null && file.exists()) {
+      try {
+        load();
+        LOG.info("Loaded {} processed outpoints from {}", size, file);
+        return;
+      } catch (IOException e) {
+        LOG.warn("Could not load outpoint index from {}, starting empty. {}", file,
+            e.getMessage());
+      }
+    }
+    if (file != null)
+      Files.deleteIfExists(file.toPath());
+    buffer = allocate(file, INITIAL_CAPACITY);
+    capacity = INITIAL_CAPACITY;
+    size = 0;
+  }
+
+  synchronized boolean contains(byte[] txHash, int index) {
+    return findSlot(buffer, capacity, txHash, index) >= 0;
+  }
+
+  /**
+   * @return true if the outpoint was added, false if it was already in the index
+   */
+  synchronized boolean add(byte[] txHash, int index) throws IOException {
+    if (txHash.length != HASH_SIZE)
+      throw new IllegalArgumentException("Transaction hash must be 32 bytes");
+    int slot = findSlot(buffer, capacity, txHash, index);
+    if (slot >= 0)
+      return false;
+    if ((size + 1) * 2 > capacity) {
+      resize(capacity * 2);
+      slot = findSlot(buffer, capacity, txHash, index);
+    }
+    writeSlot(buffer, -slot - 1, txHash, index);
+    size++;
+    buffer.putInt(12, size);
+    return true;
+  }
+
+  synchronized int size() {
+    return size;
+  }
+
+  synchronized void close() {
+    if (buffer instanceof MappedByteBuffer)
+      ((MappedByteBuffer) buffer).force();
+  }
+
+  /**
+   * @return The slot of the outpoint if present, or -(free slot + 1) if not
+   */
+  private static int findSlot(ByteBuffer buffer, int capacity, byte[] txHash, int index) {
+    int mask = capacity - 1;
+    long h0 = readLong(txHash, 0);
+    for (int slot = (int) (h0 ^ index * 0x9E3779B97F4A7C15L) & mask; ; slot = (slot + 1) & mask) {
+      int offset = HEADER_SIZE + slot * SLOT_SIZE;
+      if (buffer.getInt(offset + HASH_SIZE + 4) == 0)
+        return -slot - 1;
+      if (buffer.getInt(offset + HASH_SIZE) == index
+          && buffer.getLong(offset) == h0
+          && buffer.getLong(offset + 8) == readLong(txHash, 8)
+          && buffer.getLong(offset + 16) == readLong(txHash, 16)
+          && buffer.getLong(offset + 24) == readLong(txHash, 24))
+        return slot;
+    }
+  }
+
+  private static void writeSlot(ByteBuffer buffer, int slot, byte[] txHash, int index) {
+    int offset = HEADER_SIZE + slot * SLOT_SIZE;
+    for (int i = 0; i < HASH_SIZE; i++) {
+      buffer.put(offset + i, txHash[i]);
+    }
+    buffer.putInt(offset + HASH_SIZE, index);
+    buffer.putInt(offset + HASH_SIZE + 4, 1);
+  }
+
+  private static long readLong(byte[] bytes, int offset) {
+    long value = 0L;
+    for (int i = offset; i < offset + 8; i++) {
+      value = (value << 8) | (bytes[i] & 0xFFL);
+    }
+    return value;
+  }
+
+  /**
+   * Rehashes into a buffer of the new capacity. A mapped index is written to a temporary file
+   * first, which then replaces the old file.
+   */
+  private void resize(int newCapacity) throws IOException {
+    File resizedFile = file != null ? new File(file.getPath() + ".tmp") : null;
+    if (resizedFile != null)
+      Files.deleteIfExists(resizedFile.toPath());
+    ByteBuffer resized = allocate(resizedFile, newCapacity);
+    byte[] txHash = new byte[HASH_SIZE];
+    for (int slot = 0; slot < capacity; slot++) {
+      int offset = HEADER_SIZE + slot * SLOT_SIZE;
+      if (buffer.getInt(offset + HASH_SIZE + 4) != 0) {
+        for (int i = 0; i < HASH_SIZE; i++) {
+          txHash[i] = buffer.get(offset + i);
+        }
+        int index = buffer.getInt(offset + HASH_SIZE);
+        writeSlot(resized, -findSlot(resized, newCapacity, txHash, index) - 1, txHash, index);
+      }
+    }
+    resized.putInt(12, size);
+    if (resizedFile != null) {
+      ((MappedByteBuffer) resized).force();
+      Files.move(resizedFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    }
+    buffer = resized;
+    capacity = newCapacity;
+  }
+
+  private void load() throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      if (raf.length() < HEADER_SIZE)
+        throw new IOException("File too short");
+      ByteBuffer mapped = raf.getChannel().map(MapMode.READ_WRITE, 0, raf.length());
+      int storedCapacity = mapped.getInt(8);
+      if (mapped.getLong(0) != MAGIC || Integer.bitCount(storedCapacity) != 1
+          || raf.length() != HEADER_SIZE + (long) storedCapacity * SLOT_SIZE)
+        throw new IOException("Invalid outpoint index file");
+      buffer = mapped;
+      capacity = storedCapacity;
+      size = mapped.getInt(12);
+    }
+  }
+
+  private static ByteBuffer allocate(File file, int capacity) throws IOException {
+    int length = HEADER_SIZE + capacity * SLOT_SIZE;
+    ByteBuffer buffer;
+    if (file != null) {
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+        raf.setLength(length);
+        buffer = raf.getChannel().map(MapMode.READ_WRITE, 0, length);
+      }
+    } else {
+      buffer = ByteBuffer.allocateDirect(length);
+    }
+    buffer.putLong(0, MAGIC);
+    buffer.putInt(8, capacity);
+    buffer.putInt(12, 0);
+    return buffer;
+  }
+}
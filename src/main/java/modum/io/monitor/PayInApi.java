@@ -0,0 +1,171 @@
+package modum.io.monitor;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import spark.Request;
+import spark.Response;
+import spark.Spark;
+
+/**
+ * Routes for the totals per currency and the pay-ins per address. The totals come from the
+ * totals ledger and the per-address amounts from the pay-in index, so they need no database
+ * access. The pay-in history is read from the payment log in pages and streamed to the client
+ * as the rows are fetched.
+ *
+ * The per-address and history routes expose investor data and require the admin token.
+ */
+class PayInApi {
+  private final static int DEFAULT_PAGE_SIZE = 100;
+  private final static int MAX_PAGE_SIZE = 1000;
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+  private final TotalsLedger totalsLedger;
+  private final PayInIndex payInIndex;
+  private final UserService userService;
+  private final long startAmount;
+  private final byte[] adminToken;
+
+  /**
+   * @param adminToken Bearer token for the admin routes, or null to disable them
+   */
+  PayInApi(TotalsLedger totalsLedger, PayInIndex payInIndex, UserService userService,
+      long startAmount, String adminToken) {
+    this.totalsLedger = totalsLedger;
+    this.payInIndex = payInIndex;
+    this.userService = userService;
+    this.startAmount = startAmount;
+    this.adminToken = adminToken != null ? adminToken.getBytes(UTF_8) : null;
+  }
+
+  boolean isAdminEnabled() {
+    return adminToken != null;
+  }
+
+  /**
+   * Filter for the admin routes
+   */
+  void authorize(Request req, Response res) {
+    String authorization = req.headers("Authorization");
+    byte[] token = authorization != null && authorization.startsWith("Bearer ")
+        ? authorization.substring(7).getBytes(UTF_8) : new byte[0];
+    if (adminToken == null || !MessageDigest.isEqual(token, adminToken))
+      Spark.halt(401, "Unauthorized");
+  }
+
+  /**
+   * GET route for the amounts raised per currency in USD
+   */
+  Object serveTotals(Request req, Response res) throws IOException {
+    TotalsLedger.Snapshot snapshot = totalsLedger.getSnapshot();
+    Map<String, Long> totals = new LinkedHashMap<>(snapshot.getRaisedUSD());
+    totals.put("START", startAmount);
+    totals.put("TOTAL", snapshot.getTotalRaisedUSD() + startAmount);
+    res.type("application/json");
+    return objectMapper.writeValueAsString(totals);
+  }
+
+  /**
+   * GET route for the amount received by a pay-in address
+   */
+  Object serveAddress(Request req, Response res) throws IOException {
+    PayInIndex.AddressTotal total = payInIndex.get(req.params(":address"));
+    if (total == null)
+      Spark.halt(404, "No pay-ins for this address");
+    Map<String, Object> result = new LinkedHashMap<>();
+    result.put("address", req.params(":address"));
+    result.put("currency", total.getCurrency());
+    result.put("payIns", total.getPayIns());
+    result.put("value", total.getValue().toString());
+    result.put("usd", total.getUsd().toPlainString());
+    res.type("application/json");
+    return objectMapper.writeValueAsString(result);
+  }
+
+  /**
+   * GET route for a page of the pay-in history. The page ends with the cursor for the next page,
+   * which is passed as parameter 'after'.
+   */
+  Object servePayIns(Request req, Response res) throws IOException, SQLException {
+    int limit = DEFAULT_PAGE_SIZE;
+    Cursor after = null;
+    try {
+      if (req.queryParams("limit") != null)
+        limit = Math.max(1, Math.min(MAX_PAGE_SIZE, Integer.parseInt(req.queryParams("limit"))));
+      if (req.queryParams("after") != null)
+        after = Cursor.decode(req.queryParams("after"));
+    } catch (IllegalArgumentException e) {
+      Spark.halt(400, "Invalid parameter");
+    }
+
+    res.type("application/json");
+    JsonGenerator json = objectMapper.getFactory()
+        .createGenerator(res.raw().getOutputStream(), JsonEncoding.UTF8);
+    json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    json.writeStartObject();
+    json.writeArrayFieldStart("payIns");
+    Cursor[] last = new Cursor[1];
+    int[] rows = new int[1];
+    userService.readPayIns(after != null ? after.creationDate : null,
+        after != null ? after.identifier : null, limit,
+        (identifier, creationDate, currency, value, fxRate, usd, email, address) -> {
+          json.writeStartObject();
+          json.writeStringField("identifier", identifier);
+          json.writeStringField("creationDate", creationDate.toInstant().toString());
+          json.writeStringField("currency", currency);
+          json.writeStringField("value", value.toPlainString());
+          json.writeStringField("fxRate", fxRate != null ? fxRate.toPlainString() : null);
+          json.writeStringField("usd", usd != null ? usd.toPlainString() : null);
+          json.writeStringField("email", email);
+          json.writeStringField("address", address);
+          json.writeEndObject();
+          last[0] = new Cursor(creationDate, identifier);
+          rows[0]++;
+        });
+    json.writeEndArray();
+    json.writeStringField("next", rows[0] == limit ? last[0].encode() : null);
+    json.writeEndObject();
+    json.flush();
+    return "";
+  }
+
+  /**
+   * Position in the pay-in history, the creation date and identifier of the last pay-in read
+   */
+  private static class Cursor {
+    private final Timestamp creationDate;
+    private final String identifier;
+
+    private Cursor(Timestamp creationDate, String identifier) {
+      this.creationDate = creationDate;
+      this.identifier = identifier;
+    }
+
+    private String encode() {
+      long micros = Math.floorDiv(creationDate.getTime(), 1000L) * 1_000_000L
+          + creationDate.getNanos() / 1000L;
+      return Base64.getUrlEncoder().withoutPadding()
+          .encodeToString((micros + ":" + identifier).getBytes(UTF_8));
+    }
+
+    private static Cursor decode(String cursor) {
+      String decoded = new String(Base64.getUrlDecoder().decode(cursor), UTF_8);
+      int separator = decoded.indexOf(':');
+      if (separator < 0)
+        throw new IllegalArgumentException("Invalid cursor");
+      long micros = Long.parseLong(decoded.substring(0, separator));
+      Timestamp creationDate = new Timestamp(Math.floorDiv(micros, 1_000_000L) * 1000L);
+      creationDate.setNanos((int) Math.floorMod(micros, 1_000_000L) * 1000);
+      return new Cursor(creationDate, decoded.substring(separator + 1));
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package modum.io.monitor;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Amounts received per pay-in address, kept in memory for the API. Filled from the payment log
+ * at startup and updated by the monitors for each new pay-in, so reads need no database access.
+ */
+public class PayInIndex {
+  private final Map<String, AddressTotal> totals = new ConcurrentHashMap<>();
+
+  /**
+   * Adds a pay-in to the total of its address
+   * @param value Amount in the smallest unit of the currency, i.e. wei or satoshi
+   */
+  public void add(String address, String currency, BigInteger value, BigDecimal usd) {
+    add(address, currency, 1L, value, usd);
+  }
+
+  /**
+   * Adds several pay-ins to the total of their address
+   */
+  public void add(String address, String currency, long payIns, BigInteger value,
+      BigDecimal usd) {
+    if (address == null)
+      return;
+    totals.merge(normalize(address), new AddressTotal(currency, payIns, value, usd),
+        AddressTotal::plus);
+  }
+
+  /**
+   * @return The total received by the address, or null if nothing was received
+   */
+  public AddressTotal get(String address) {
+    return totals.get(normalize(address));
+  }
+
+  public int size() {
+    return totals.size();
+  }
+
+  /**
+   * Ethereum addresses are case-insensitive, bitcoin addresses are not
+   */
+  private static String normalize(String address) {
+    return address.startsWith("0x") || address.startsWith("0X")
+        ? address.toLowerCase() : address;
+  }
+
+  /**
+   * Immutable total of the pay-ins to one address
+   */
+  public static class AddressTotal {
+    private final String currency;
+    private final long payIns;
+    private final BigInteger value;
+    private final BigDecimal usd;
+
+    public AddressTotal(String currency, long payIns, BigInteger value, BigDecimal usd) {
+      this.currency = currency;
+      this.payIns = payIns;
+      this.value = value;
+      this.usd = usd;
+    }
+
+    private AddressTotal plus(AddressTotal other) {
+      return new AddressTotal(currency, payIns + other.payIns, value.add(other.value),
+          usd.add(other.usd));
+    }
+
+    public String getCurrency() {
+      return currency;
+    }
+
+    public long getPayIns() {
+      return payIns;
+    }
+
+    /**
+     * @return Amount in wei or satoshi
+     */
+    public BigInteger getValue() {
+      return value;
+    }
+
+    public BigDecimal getUsd() {
+      return usd;
+    }
+  }
+}
@@ -0,0 +1,301 @@
+package modum.io.monitor;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes pay-ins to the payment_log table in the background. Pay-ins queued within flushMillis
+ * of each other are inserted with a single multi-row statement of up to batchSize rows, so they
+ * share one commit. Each caller gets a future telling whether its row was new.
+ *
+ * If a batch fails, its pay-ins are written one by one, so a single bad row only fails its own
+ * future. Any other error fails the futures of its batch and the writer goes on. Futures are
+ * completed on a separate thread, so slow callbacks don't delay the next batch. The writer thread
+ * is a daemon, the shutdown hook calling stop() writes the queued pay-ins.
+ */
+class PayInWriter {
+  private final static Logger LOG = LoggerFactory.getLogger(PayInWriter.class);
+  private final static Metrics.Timer INSERT_TIMER = UserService.queryTimer("payin_insert");
+
+  private final DataSource dataSource;
+  private final int batchSize;
+  private final long flushMillis;
+  private final boolean withAddress;
+  private final BlockingQueue<PayIn> queue = new LinkedBlockingQueue<>();
+  private final ExecutorService callbackExecutor;
+  private final Thread writerThread;
+  private volatile boolean stop = false;
+
+  private final AtomicLong batchCount = new AtomicLong();
+  private final AtomicLong rowCount = new AtomicLong();
+  private volatile int lastBatchSize = 0;
+  private volatile long lastCommitMillis = 0L;
+
+  /**
+   * @param withAddress Whether payment_log has the address column
+   */
+  PayInWriter(DataSource dataSource, int batchSize, long flushMillis, boolean withAddress) {
+    if (batchSize < 1)
+      throw new IllegalArgumentException("Batch size must be at least 1");
+    this.dataSource = dataSource;
+    this.batchSize = batchSize;
+    this.flushMillis = flushMillis;
+    this.withAddress = withAddress;
+    this.callbackExecutor = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "payin-callbacks");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.writerThread = new Thread(this::run, "payin-writer");
+    this.writerThread.setDaemon(true);
+    this.writerThread.start();
+
+    Metrics.gauge("payin_queue_size", "Pay-ins waiting for the pay-in writer", this::getQueueSize);
+    Metrics.counter("payin_batches_total", "Batches written by the pay-in writer",
+        this::getBatchCount);
+    Metrics.counter("payin_rows_total", "Pay-ins written by the pay-in writer", this::getRowCount);
+  }
+
+  /**
+   * Queues a pay-in for insertion
+   * @return Completes with true if the pay-in was inserted, false if it was already registered
+   */
+  CompletableFuture<Boolean> save(String identifier, String currency, BigInteger value,
+      BigDecimal fxRate, BigDecimal usd, String email, String address) {
+    PayIn payIn = new PayIn(identifier, currency, value, fxRate, usd, email, address);
+    // Shared with stop(), so no pay-in is queued after the writer saw the stop flag
+    synchronized (queue) {
+      if (!stop) {
+        queue.add(payIn);
+        return payIn.result;
+      }
+    }
+    payIn.result.completeExceptionally(new SQLException("Pay-in writer is stopped"));
+    return payIn.result;
+  }
+
+  /**
+   * Writes all queued pay-ins and stops the writer. Pay-ins the writer could not write before it
+   * ended fail with an SQLException.
+   */
+  void stop() {
+    synchronized (queue) {
+      stop = true;
+    }
+    try {
+      writerThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    List<PayIn> remaining = new ArrayList<>();
+    queue.drainTo(remaining);
+    fail(remaining, new SQLException("Pay-in writer is stopped"));
+    callbackExecutor.shutdown();
+  }
+
+  long getBatchCount() {
+    return batchCount.get();
+  }
+
+  long getRowCount() {
+    return rowCount.get();
+  }
+
+  int getLastBatchSize() {
+    return lastBatchSize;
+  }
+
+  long getLastCommitMillis() {
+    return lastCommitMillis;
+  }
+
+  int getQueueSize() {
+    return queue.size();
+  }
+
+  private void run() {
+    try {
+      while (!stop || !queue.isEmpty()) {
+        PayIn first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null)
+          continue;
+
+        List<PayIn> batch = new ArrayList<>();
+        batch.add(first);
+        long deadline = System.currentTimeMillis() + flushMillis;
+        while (batch.size() < batchSize) {
+          long wait = deadline - System.currentTimeMillis();
+          PayIn next = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+          if (next == null)
+            break;
+          batch.add(next);
+        }
+        try {
+          write(batch);
+        } catch (Throwable e) {
+          // Keep the writer alive, otherwise no later pay-in would ever complete
+          LOG.error("Could not write {} pay-ins. {} {}", batch.size(), e.getMessage(),
+              e.getCause());
+          fail(batch, new SQLException("Could not write pay-in", e));
+        }
+      }
+    } catch (InterruptedException e) {
+      LOG.warn("Pay-in writer interrupted, {} pay-ins not written", queue.size());
+    }
+    LOG.info("Pay-in writer stopped");
+  }
+
+  private void write(List<PayIn> batch) {
+    // The same pay-in may be queued twice. Only its first occurrence can be new.
+    Map<String, PayIn> rows = new LinkedHashMap<>();
+    List<PayIn> duplicates = new ArrayList<>();
+    for (PayIn payIn : batch) {
+      if (rows.putIfAbsent(payIn.identifier, payIn) != null)
+        duplicates.add(payIn);
+    }
+
+    PayIn first = batch.get(0);
+    long start = System.currentTimeMillis();
+    Set<String> inserted;
+    Map<String, SQLException> failed = new HashMap<>();
+    try {
+      inserted = insert(rows.values());
+    } catch (SQLException e) {
+      inserted = new HashSet<>();
+      if (rows.size() == 1) {
+        LOG.error("Could not write pay-in {}. {} {}", first.identifier, e.getMessage(),
+            e.getCause());
+        failed.put(first.identifier, e);
+      } else {
+        LOG.error("Could not write {} pay-ins, writing them one by one. {} {}", rows.size(),
+            e.getMessage(), e.getCause());
+        for (PayIn payIn : rows.values()) {
+          try {
+            inserted.addAll(insert(Collections.singletonList(payIn)));
+          } catch (SQLException rowError) {
+            LOG.error("Could not write pay-in {}. {} {}", payIn.identifier,
+                rowError.getMessage(), rowError.getCause());
+            failed.put(payIn.identifier, rowError);
+          }
+        }
+      }
+    }
+
+    lastCommitMillis = System.currentTimeMillis() - start;
+    INSERT_TIMER.recordMillis(lastCommitMillis);
+    lastBatchSize = batch.size();
+    batchCount.incrementAndGet();
+    rowCount.addAndGet(rows.size() - failed.size());
+    LOG.debug("Wrote {} pay-ins, {} new, {} failed, in {} ms", batch.size(), inserted.size(),
+        failed.size(), lastCommitMillis);
+
+    Set<String> newRows = inserted;
+    callbackExecutor.execute(() -> {
+      rows.values().forEach(payIn -> complete(payIn, newRows.contains(payIn.identifier), failed));
+      duplicates.forEach(payIn -> complete(payIn, false, failed));
+    });
+  }
+
+  /**
+   * Fails the futures of the pay-ins on the calling thread
+   */
+  private static void fail(List<PayIn> payIns, SQLException error) {
+    payIns.forEach(payIn -> payIn.result.completeExceptionally(error));
+  }
+
+  private static void complete(PayIn payIn, boolean inserted, Map<String, SQLException> failed) {
+    SQLException error = failed.get(payIn.identifier);
+    if (error != null)
+      payIn.result.completeExceptionally(error);
+    else
+      payIn.result.complete(inserted);
+  }
+
+  /**
+   * Inserts the rows with a single statement
+   * @return The identifiers of the rows that were new
+   */
+  private Set<String> insert(Collection<PayIn> rows) throws SQLException {
+    StringBuilder sql = new StringBuilder(""
+        + "INSERT INTO payment_log (tx_identifier, creation_date, currency, paymentvalue, fx_rate,"
+        + "usd, email" + (withAddress ? ", address" : "") + ") VALUES ");
+    for (int i = 0; i < rows.size(); i++) {
+      sql.append(i == 0 ? "" : ", ").append(withAddress ? "(?, ?, ?, ?, ?, ?, ?, ?)"
+          : "(?, ?, ?, ?, ?, ?, ?)");
+    }
+    sql.append(" ON CONFLICT DO NOTHING RETURNING tx_identifier");
+
+    Set<String> inserted = new HashSet<>();
+    try (
+        Connection conn = dataSource.getConnection();
+        PreparedStatement preparedStatement = conn.prepareStatement(sql.toString());
+    ) {
+      Timestamp now = Timestamp.from(Instant.now());
+      int parameter = 1;
+      for (PayIn payIn : rows) {
+        preparedStatement.setString(parameter++, payIn.identifier);
+        preparedStatement.setTimestamp(parameter++, now);
+        preparedStatement.setString(parameter++, payIn.currency);
+        preparedStatement.setBigDecimal(parameter++, new BigDecimal(payIn.value));
+        preparedStatement.setBigDecimal(parameter++, payIn.fxRate);
+        preparedStatement.setBigDecimal(parameter++, payIn.usd);
+        preparedStatement.setString(parameter++, payIn.email);
+        if (withAddress)
+          preparedStatement.setString(parameter++, payIn.address);
+      }
+      try (ResultSet rs = preparedStatement.executeQuery()) {
+        while (rs.next()) {
+          inserted.add(rs.getString("tx_identifier"));
+        }
+      }
+    }
+    return inserted;
+  }
+
+  private static class PayIn {
+    private final String identifier;
+    private final String currency;
+    private final BigInteger value;
+    private final BigDecimal fxRate;
+    private final BigDecimal usd;
+    private final String email;
+    private final String address;
+    private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+    private PayIn(String identifier, String currency, BigInteger value, BigDecimal fxRate,
+        BigDecimal usd, String email, String address) {
+      this.identifier = identifier;
+      this.currency = currency;
+      this.value = value;
+      this.fxRate = fxRate;
+      this.usd = usd;
+      this.email = email;
+      this.address = address;
+    }
+  }
+}
@@ -0,0 +1,107 @@
+package modum.io.monitor;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.core.TransactionOutput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the watched outputs of pending bitcoin transactions, until the transaction is
+ * included in a block, dies or expires. Pending transactions are checked on every new best block
+ * instead of through one confidence listener per transaction.
+ *
+ * Only transaction hashes and output indexes are kept, the transactions themselves are looked up
+ * in the wallet when checked.
+ */
+class PendingTransactionTracker {
+  private final static Logger LOG = LoggerFactory.getLogger(PendingTransactionTracker.class);
+
+  private final Function<Sha256Hash, Transaction> transactionLookup;
+  private final Consumer<TransactionOutput> onConfirmed;
+  private final long expirySeconds;
+  private final Map<Sha256Hash, PendingTransaction> pending = new HashMap<>();
+  private long pendingSatoshi = 0L;
+
+  /**
+   * @param transactionLookup Returns the transaction for a hash, e.g. from the wallet
+   * @param onConfirmed Called for each tracked output once its transaction is in the best chain
+   * @param expirySeconds Time after which a transaction that is still pending is dropped
+   */
+  PendingTransactionTracker(Function<Sha256Hash, Transaction> transactionLookup,
+      Consumer<TransactionOutput> onConfirmed, long expirySeconds) {
+    this.transactionLookup = transactionLookup;
+    this.onConfirmed = onConfirmed;
+    this.expirySeconds = expirySeconds;
+  }
+
+  synchronized void track(TransactionOutput output) {
+    Sha256Hash hash = output.getParentTransactionHash();
+    PendingTransaction transaction = pending.computeIfAbsent(hash,
+        h -> new PendingTransaction(Instant.now().getEpochSecond()));
+    if (!transaction.outputIndexes.contains(output.getIndex())) {
+      transaction.outputIndexes.add(output.getIndex());
+      transaction.satoshi += output.getValue().getValue();
+      pendingSatoshi += output.getValue().getValue();
+    }
+  }
+
+  /**
+   * Checks all pending transactions. Called on every new best block.
+   */
+  void checkPending() {
+    List<TransactionOutput> confirmed = new ArrayList<>();
+    long now = Instant.now().getEpochSecond();
+    synchronized (this) {
+      Iterator<Entry<Sha256Hash, PendingTransaction>> iterator = pending.entrySet().iterator();
+      while (iterator.hasNext()) {
+        Entry<Sha256Hash, PendingTransaction> entry = iterator.next();
+        PendingTransaction transaction = entry.getValue();
+        Transaction tx = transactionLookup.apply(entry.getKey());
+        ConfidenceType type = tx != null ? tx.getConfidence().getConfidenceType() : null;
+
+        if (type == ConfidenceType.BUILDING) {
+          transaction.outputIndexes.forEach(index -> confirmed.add(tx.getOutput(index)));
+        } else if (type == null || type == ConfidenceType.DEAD
+            || type == ConfidenceType.IN_CONFLICT) {
+          LOG.info("Pending transaction {} dropped: {}", entry.getKey(), type);
+        } else if (now - transaction.firstSeen > expirySeconds) {
+          LOG.warn("Pending transaction {} expired after {} s", entry.getKey(), expirySeconds);
+        } else {
+          continue;
+        }
+        pendingSatoshi -= transaction.satoshi;
+        iterator.remove();
+      }
+    }
+    confirmed.forEach(onConfirmed);
+  }
+
+  synchronized int getPendingCount() {
+    return pending.size();
+  }
+
+  synchronized long getPendingSatoshi() {
+    return pendingSatoshi;
+  }
+
+  private static class PendingTransaction {
+    private final long firstSeen;
+    private final List<Integer> outputIndexes = new ArrayList<>(1);
+    private long satoshi = 0L;
+
+    private PendingTransaction(long firstSeen) {
+      this.firstSeen = firstSeen;
+    }
+  }
+}
@@ -1,9 +1,22 @@
 package modum.io.monitor;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.sql.DataSource;
 import org.postgresql.PGNotification;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,64 +24,216 @@ import org.slf4j.LoggerFactory;
 /**
  * Uses posgres pub-sub functionality to listen for updates to the pay-in address fiels
  * in the investor database.
+ *
+ * A payload may be a JSON array of strings, which is handled like a notification for each element.
+ * Notifications are collected per channel and handed to the actions on a separate thread, so a
+ * burst of notifications results in one call per channel with the distinct payloads. If the
+ * connection is lost, the listener reconnects with exponential backoff and runs the resync
+ * action, because notifications sent while it was disconnected are lost.
  */
 public class PostgresTriggerListener extends Thread {
   private final static Logger LOG = LoggerFactory.getLogger(PostgresTriggerListener.class);
+  private final static int POLL_TIMEOUT_MS = 1000;
+  private final static long HEALTH_CHECK_INTERVAL_MS = 30_000;
+  private final static long MIN_BACKOFF_MS = 1_000;
+  private final static long MAX_BACKOFF_MS = 60_000;
+  private final static ObjectMapper OBJECT_MAPPER = new ObjectMapper();
 
   private volatile boolean stop = false;
-  private org.postgresql.PGConnection pgconn;
-  private Map<String, TriggerAction> actions;
+  private final DataSource dataSource;
+  private final Map<String, TriggerAction> actions;
+  private final Runnable resync;
+  private final ExecutorService executor;
+  private Connection conn;
+  private long lastHealthCheck;
 
-  PostgresTriggerListener(Connection conn, Map<String, TriggerAction> actions) throws SQLException
-  {
+  // Payloads not yet handed to the actions, per channel, guarded by 'this'
+  private Map<String, Set<String>> pending = new HashMap<>();
+  private long oldestPendingMillis;
+  private boolean dispatchScheduled = false;
+
+  private final AtomicInteger reconnectCount = new AtomicInteger();
+  private volatile long lagMillis = 0;
+
+  /**
+   * @param resync Called after a reconnect to pick up the changes missed while disconnected
+   */
+  PostgresTriggerListener(DataSource dataSource, Map<String, TriggerAction> actions,
+      Runnable resync) throws SQLException {
+    super("trigger-listener");
     if (actions == null || actions.size() == 0)
       throw new RuntimeException("Need at least one channel to listen to");
 
+    this.dataSource = dataSource;
     this.actions = actions;
-    this.pgconn = conn.unwrap(org.postgresql.PGConnection.class);
-
-    // Init listener
-    Statement stmt = conn.createStatement();
-    actions.keySet().forEach(channel -> {
-      try {
-        stmt.execute("LISTEN " + channel);
-      } catch (SQLException e) {
-        throw new RuntimeException(e);
-      }
+    this.resync = resync;
+    this.executor = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "trigger-actions");
+      thread.setDaemon(true);
+      return thread;
     });
-    stmt.close();
+    setDaemon(true);
+    connect();
   }
 
   public void run() {
-    try {
-      while (!stop) {
-        PGNotification notifications[] = pgconn.getNotifications(1000);
-        if (notifications != null) {
-          for (PGNotification notification : notifications) {
-            TriggerAction action = actions.get(notification.getName());
-            if (action != null) {
-              try {
-                action.run(notification.getParameter());
-              } catch (Throwable e) {
-                LOG.error("Error during trigger: {}", e.getMessage());
-              }
-            } else {
-              LOG.error("Warning: no modum.io.monitor.TriggerAction provided for {}",
-                  notification.getName());
-            }
-          }
+    long backoff = MIN_BACKOFF_MS;
+    while (!stop) {
+      try {
+        if (conn == null) {
+          connect();
+          LOG.info("Trigger listener reconnected, resyncing");
+          reconnectCount.incrementAndGet();
+          executor.execute(this::runResync);
+        }
+        poll();
+        backoff = MIN_BACKOFF_MS;
+      } catch (Throwable e) {
+        if (stop)
+          break;
+        LOG.error("Trigger listener lost its connection, reconnecting in {} ms. {} {}", backoff,
+            e.getMessage(), e.getCause());
+        closeConnection();
+        try {
+          Thread.sleep(backoff);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          break;
         }
+        backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
       }
-      LOG.info("Trigger listener stopped");
-    }
-    catch (Throwable e) {
-      throw new RuntimeException(e);
     }
+    closeConnection();
+    executor.shutdown();
+    LOG.info("Trigger listener stopped");
   }
 
   public void gracefulStop() {
     stop = true;
+    interrupt(); // Wakes up a reconnect backoff
     LOG.info("Graceful stopping trigger listener...");
   }
 
+  /**
+   * @return The number of times the connection was re-established
+   */
+  public int getReconnectCount() {
+    return reconnectCount.get();
+  }
+
+  /**
+   * @return The time in ms from receiving the oldest notification of the last batch until its
+   * actions completed
+   */
+  public long getLagMillis() {
+    return lagMillis;
+  }
+
+  /**
+   * @return The number of payloads received but not yet handed to the actions
+   */
+  public synchronized int getPendingCount() {
+    return pending.values().stream().mapToInt(Set::size).sum();
+  }
+
+  private void connect() throws SQLException {
+    Connection connection = dataSource.getConnection();
+    try (Statement stmt = connection.createStatement()) {
+      for (String channel : actions.keySet()) {
+        stmt.execute("LISTEN " + channel);
+      }
+    } catch (SQLException e) {
+      connection.close();
+      throw e;
+    }
+    conn = connection;
+    lastHealthCheck = System.currentTimeMillis();
+  }
+
+  private void closeConnection() {
+    if (conn == null)
+      return;
+    try {
+      conn.close();
+    } catch (SQLException e) {
+      LOG.debug("Could not close trigger listener connection. {}", e.getMessage());
+    }
+    conn = null;
+  }
+
+  private void poll() throws SQLException {
+    PGNotification notifications[] = conn.unwrap(org.postgresql.PGConnection.class)
+        .getNotifications(POLL_TIMEOUT_MS);
+    if (notifications != null && notifications.length > 0)
+      enqueue(notifications);
+
+    // A connection dropped without a reset is only noticed when something is sent
+    if (System.currentTimeMillis() - lastHealthCheck > HEALTH_CHECK_INTERVAL_MS) {
+      try (Statement stmt = conn.createStatement()) {
+        stmt.execute("SELECT 1");
+      }
+      lastHealthCheck = System.currentTimeMillis();
+    }
+  }
+
+  private synchronized void enqueue(PGNotification[] notifications) {
+    if (pending.isEmpty())
+      oldestPendingMillis = System.currentTimeMillis();
+    for (PGNotification notification : notifications) {
+      pending.computeIfAbsent(notification.getName(), channel -> new LinkedHashSet<>())
+          .addAll(parsePayload(notification.getParameter()));
+    }
+    if (!dispatchScheduled) {
+      dispatchScheduled = true;
+      executor.execute(this::dispatch);
+    }
+  }
+
+  private static List<String> parsePayload(String payload) {
+    if (!payload.startsWith("["))
+      return Collections.singletonList(payload);
+    try {
+      return Arrays.asList(OBJECT_MAPPER.readValue(payload, String[].class));
+    } catch (IOException e) {
+      LOG.error("Invalid notification payload {}. {}", payload, e.getMessage());
+      return Collections.emptyList();
+    }
+  }
+
+  /**
+   * Hands all pending payloads to the actions. Notifications received meanwhile are collected
+   * for the next dispatch.
+   */
+  private void dispatch() {
+    Map<String, Set<String>> batch;
+    long received;
+    synchronized (this) {
+      batch = pending;
+      received = oldestPendingMillis;
+      pending = new HashMap<>();
+      dispatchScheduled = false;
+    }
+    batch.forEach((channel, payloads) -> {
+      TriggerAction action = actions.get(channel);
+      if (action != null) {
+        try {
+          action.run(new ArrayList<>(payloads));
+        } catch (Throwable e) {
+          LOG.error("Error during trigger: {}", e.getMessage());
+        }
+      } else {
+        LOG.error("Warning: no modum.io.monitor.TriggerAction provided for {}", channel);
+      }
+    });
+    lagMillis = System.currentTimeMillis() - received;
+  }
+
+  private void runResync() {
+    try {
+      resync.run();
+    } catch (Throwable e) {
+      LOG.error("Error during resync: {}", e.getMessage());
+    }
+  }
+
 }
@@ -0,0 +1,53 @@
+package modum.io.monitor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Sends JSON-RPC payloads, single requests or batches, to the ethereum node and reads the
+ * response. Implementations are thread-safe and keep a pool of connections to the node.
+ */
+interface RpcTransport extends Closeable {
+
+  /**
+   * @param payload JSON-RPC request or array of requests
+   * @return The response, deserialized as responseType
+   */
+  <T> T send(String payload, Class<T> responseType) throws IOException;
+
+  /**
+   * @param url Http(s) URL of the node, or the filesystem path of its IPC socket. A comma
+   * separated list of several nodes creates a {@link NodePoolTransport}.
+   * @param maxConnections Maximum number of concurrent requests per node
+   */
+  static RpcTransport create(String url, int maxConnections) {
+    List<String> urls = splitUrls(url);
+    if (urls.size() > 1)
+      return new NodePoolTransport(urls, maxConnections);
+    url = urls.get(0);
+    if (isIpc(url))
+      return new IpcRpcTransport(url.startsWith("file://") ? url.substring(7) : url,
+          maxConnections);
+    return new HttpRpcTransport(url, maxConnections);
+  }
+
+  /**
+   * @return The URLs of a comma separated list
+   */
+  static List<String> splitUrls(String urls) {
+    return Arrays.stream(urls.split(","))
+        .map(String::trim)
+        .filter(url -> !url.isEmpty())
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * @return True if the URL is the path of an IPC socket rather than a network URL
+   */
+  static boolean isIpc(String url) {
+    return url.startsWith("file://") || !url.contains("://");
+  }
+}
@@ -0,0 +1,23 @@
+package modum.io.monitor;
+
+import java.io.IOException;
+import org.web3j.protocol.Service;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.Response;
+
+/**
+ * Web3j service sending its requests over an {@link RpcTransport}, so Web3j and the block fetcher
+ * share the connections to the node.
+ */
+class RpcTransportService extends Service {
+  private final RpcTransport transport;
+
+  RpcTransportService(RpcTransport transport) {
+    this.transport = transport;
+  }
+
+  @Override
+  public <T extends Response> T send(Request request, Class<T> responseType) throws IOException {
+    return transport.send(objectMapper.writeValueAsString(request), responseType);
+  }
+}
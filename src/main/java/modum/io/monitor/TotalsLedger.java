@@ -0,0 +1,142 @@
+package modum.io.monitor;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the total amount raised in USD per currency. Written by the blockchain monitors and read
+ * by the HTTP endpoint.
+ *
+ * Amounts are accumulated as fixed-point longs of 10^-8 USD, plus the exact remainder below that
+ * unit, so the rounded totals are identical to rounding the exact BigDecimal sum up.
+ * After each write an immutable snapshot is published, which readers fetch without locking.
+ * Listeners are notified of new snapshots in order, after the ledger is unlocked.
+ */
+public class TotalsLedger {
+  private final static int SCALE = 8;
+  private final static long UNITS_PER_USD = 100_000_000L;
+
+  private final Map<String, Account> accounts = new HashMap<>();
+  private volatile Snapshot snapshot = new Snapshot(Collections.emptyMap());
+  private final List<Consumer<Snapshot>> listeners = new CopyOnWriteArrayList<>();
+  private final AtomicInteger notifyRequests = new AtomicInteger();
+  private Snapshot notified = snapshot; // Only accessed by the thread notifying the listeners
+
+  /**
+   * Adds a payment to the total of the currency
+   */
+  public void add(String currency, BigDecimal usd) {
+    synchronized (this) {
+      accounts.computeIfAbsent(currency, c -> new Account()).add(usd);
+      publish();
+    }
+    notifyListeners();
+  }
+
+  /**
+   * Replaces the total of the currency, e.g. with the sum of already registered payments
+   */
+  public void set(String currency, BigDecimal usd) {
+    Account account = new Account();
+    account.add(usd);
+    synchronized (this) {
+      accounts.put(currency, account);
+      publish();
+    }
+    notifyListeners();
+  }
+
+  public Snapshot getSnapshot() {
+    return snapshot;
+  }
+
+  /**
+   * Registers a listener for new snapshots. Listeners are called by one writing thread at a time,
+   * with the newest snapshot. Snapshots written meanwhile may be skipped, but a listener never
+   * gets an older snapshot after a newer one.
+   */
+  public void addListener(Consumer<Snapshot> listener) {
+    listeners.add(listener);
+  }
+
+  private void publish() {
+    Map<String, Long> raisedUSD = new HashMap<>();
+    accounts.forEach((currency, account) -> raisedUSD.put(currency, account.roundUp()));
+    snapshot = new Snapshot(raisedUSD);
+  }
+
+  /**
+   * Passes the newest snapshot to the listeners, unless another thread is doing so already. That
+   * thread then passes it on after it is done.
+   */
+  private void notifyListeners() {
+    if (notifyRequests.getAndIncrement() != 0)
+      return;
+    int requests = 1;
+    do {
+      Snapshot latest = snapshot;
+      if (latest != notified) {
+        notified = latest;
+        listeners.forEach(listener -> listener.accept(latest));
+      }
+      requests = notifyRequests.addAndGet(-requests);
+    } while (requests != 0);
+  }
+
+  /**
+   * Immutable view of the totals at one point in time
+   */
+  public static class Snapshot {
+    private final Map<String, Long> raisedUSD;
+    private final long totalRaisedUSD;
+
+    private Snapshot(Map<String, Long> raisedUSD) {
+      this.raisedUSD = Collections.unmodifiableMap(raisedUSD);
+      this.totalRaisedUSD = raisedUSD.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    /**
+     * @return The amount raised in the currency in USD, rounded up
+     */
+    public long getRaisedUSD(String currency) {
+      Long raised = raisedUSD.get(currency);
+      return raised != null ? raised : 0L;
+    }
+
+    /**
+     * @return The sum of the rounded amounts of all currencies
+     */
+    public long getTotalRaisedUSD() {
+      return totalRaisedUSD;
+    }
+
+    public Map<String, Long> getRaisedUSD() {
+      return raisedUSD;
+    }
+  }
+
+  private static class Account {
+    private long units = 0L;
+    private BigDecimal remainder = BigDecimal.ZERO; // Always in [0, 1) units
+
+    private void add(BigDecimal usd) {
+      BigDecimal scaled = remainder.add(usd.movePointRight(SCALE));
+      long wholeUnits = scaled.setScale(0, BigDecimal.ROUND_FLOOR).longValueExact();
+      units = Math.addExact(units, wholeUnits);
+      remainder = scaled.subtract(BigDecimal.valueOf(wholeUnits));
+    }
+
+    private long roundUp() {
+      long usd = Math.floorDiv(units, UNITS_PER_USD);
+      if (Math.floorMod(units, UNITS_PER_USD) != 0 || remainder.signum() > 0)
+        usd++;
+      return usd;
+    }
+  }
+}
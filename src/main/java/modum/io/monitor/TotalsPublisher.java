@@ -0,0 +1,210 @@
+package modum.io.monitor;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import spark.Request;
+import spark.Response;
+
+/**
+ * Serves the total amount raised in USD. The response body and its ETag are prepared once per
+ * change of the total, so requests only compare the ETag and write the prepared bytes.
+ *
+ * Browsers can also subscribe to the total with server-sent events. Subscribers are held as
+ * asynchronous requests with non-blocking writes, so they don't occupy a server thread, and a
+ * slow subscriber only gets the latest total once it can receive again.
+ */
+class TotalsPublisher {
+  private final static Logger LOG = LoggerFactory.getLogger(TotalsPublisher.class);
+  private final static String CACHE_CONTROL = "public, max-age=5";
+  private final static long KEEP_ALIVE_SECONDS = 30L;
+  private final static byte[] KEEP_ALIVE = ":\n\n".getBytes(UTF_8);
+
+  private final long startAmount;
+  private volatile TotalsResponse current;
+  private final Set<EventClient> clients = ConcurrentHashMap.newKeySet();
+  private final AtomicBoolean updateScheduled = new AtomicBoolean(false);
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+      runnable -> {
+        Thread thread = new Thread(runnable, "totals-events");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  /**
+   * @param startAmount Amount in USD added to the total of the ledger
+   */
+  TotalsPublisher(TotalsLedger totalsLedger, long startAmount) {
+    this.startAmount = startAmount;
+    this.current = new TotalsResponse(totalsLedger.getSnapshot().getTotalRaisedUSD() + startAmount);
+    totalsLedger.addListener(this::update);
+    update(totalsLedger.getSnapshot());
+    executor.scheduleAtFixedRate(this::keepAlive, KEEP_ALIVE_SECONDS, KEEP_ALIVE_SECONDS,
+        TimeUnit.SECONDS);
+
+    Metrics.gauge("totals_event_subscribers", "Clients subscribed to the totals events",
+        this::getSubscriberCount);
+    Metrics.gauge("totals_raised_usd", "Total raised in USD, including the start amount",
+        () -> current.total);
+  }
+
+  /**
+   * GET route for the total. Answers with 304 if the client has the current total.
+   */
+  Object serveTotal(Request req, Response res) {
+    TotalsResponse response = current;
+    res.header("ETag", response.etag);
+    res.header("Cache-Control", CACHE_CONTROL);
+    if (matches(req.headers("If-None-Match"), response.etag)) {
+      res.status(304);
+      return "";
+    }
+    return response.body;
+  }
+
+  /**
+   * GET route for the server-sent events stream. Sends the current total, then each new total.
+   */
+  Object serveEvents(Request req, Response res) throws IOException {
+    res.type("text/event-stream");
+    res.header("Cache-Control", "no-cache");
+    HttpServletResponse raw = res.raw();
+    AsyncContext async = req.raw().startAsync();
+    async.setTimeout(0);
+
+    // Commit the response while the stream is still blocking, so Spark doesn't write a body
+    TotalsResponse sent = current;
+    ServletOutputStream out = raw.getOutputStream();
+    out.write(sent.event);
+    raw.flushBuffer();
+
+    EventClient client = new EventClient(async, out);
+    clients.add(client);
+    out.setWriteListener(client);
+    if (current != sent)
+      client.send(current.event);
+    return "";
+  }
+
+  int getSubscriberCount() {
+    return clients.size();
+  }
+
+  private synchronized void update(TotalsLedger.Snapshot snapshot) {
+    long total = snapshot.getTotalRaisedUSD() + startAmount;
+    if (total == current.total)
+      return;
+    current = new TotalsResponse(total);
+    // Updates that arrive while one is scheduled are sent with it
+    if (updateScheduled.compareAndSet(false, true)) {
+      executor.execute(() -> {
+        updateScheduled.set(false);
+        byte[] event = current.event;
+        clients.forEach(client -> client.send(event));
+      });
+    }
+  }
+
+  private void keepAlive() {
+    clients.forEach(client -> client.send(KEEP_ALIVE));
+  }
+
+  private static boolean matches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null)
+      return false;
+    for (String tag : ifNoneMatch.split(",")) {
+      tag = tag.trim();
+      if (tag.startsWith("W/"))
+        tag = tag.substring(2);
+      if (tag.equals(etag) || tag.equals("*"))
+        return true;
+    }
+    return false;
+  }
+
+  private static class TotalsResponse {
+    private final long total;
+    private final byte[] body;
+    private final String etag;
+    private final byte[] event;
+
+    private TotalsResponse(long total) {
+      this.total = total;
+      this.body = Long.toString(total).getBytes(UTF_8);
+      this.etag = "\"" + total + "\"";
+      this.event = ("data: " + total + "\n\n").getBytes(UTF_8);
+    }
+  }
+
+  /**
+   * A subscriber. Only the latest event that could not be written yet is kept.
+   */
+  private class EventClient implements WriteListener {
+    private final AsyncContext async;
+    private final ServletOutputStream out;
+    private byte[] pending = null;
+    private boolean flushPending = false;
+
+    private EventClient(AsyncContext async, ServletOutputStream out) {
+      this.async = async;
+      this.out = out;
+    }
+
+    private synchronized void send(byte[] event) {
+      // A keep-alive must not replace an event that is still waiting
+      if (event != KEEP_ALIVE || pending == null)
+        pending = event;
+      write();
+    }
+
+    @Override
+    public synchronized void onWritePossible() {
+      write();
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      close();
+    }
+
+    private void write() {
+      try {
+        // isReady() returning false schedules onWritePossible
+        if (pending != null && out.isReady()) {
+          out.write(pending);
+          pending = null;
+          flushPending = true;
+        }
+        if (flushPending && out.isReady()) {
+          out.flush();
+          flushPending = false;
+        }
+      } catch (IOException | IllegalStateException e) {
+        close();
+      }
+    }
+
+    private void close() {
+      if (!clients.remove(this))
+        return;
+      LOG.debug("Totals subscriber disconnected");
+      try {
+        async.complete();
+      } catch (IllegalStateException e) {
+        // Already completed
+      }
+    }
+  }
+}
@@ -1,8 +1,37 @@
 package modum.io.monitor;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
 /**
  * Interface for the DatabaseWatcher. run(payload) is called for every NOTIFY.
  */
 public interface TriggerAction {
   void run(String payload);
+
+  /**
+   * Called with the distinct payloads of the NOTIFYs received on a channel since the last call.
+   * Actions that can handle several payloads at once should override this.
+   */
+  default void run(List<String> payloads) {
+    payloads.forEach(this::run);
+  }
+
+  /**
+   * @return An action that passes single payloads as a list of one
+   */
+  static TriggerAction ofBatches(Consumer<List<String>> action) {
+    return new TriggerAction() {
+      @Override
+      public void run(String payload) {
+        action.accept(Collections.singletonList(payload));
+      }
+
+      @Override
+      public void run(List<String> payloads) {
+        action.accept(payloads);
+      }
+    };
+  }
 }
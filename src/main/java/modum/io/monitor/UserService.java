@@ -1,27 +1,87 @@
 package modum.io.monitor;
 
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Timestamp;
-import java.time.Instant;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
 import javax.sql.DataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Service for the investor and payment_log tables.
+ * Investor emails are cached in memory by pay-in public key. The cache is filled at startup and
+ * when new pay-in keys are assigned, and falls back to the database on a miss.
+ * Pay-ins are written by a {@link PayInWriter}, which commits concurrent pay-ins together.
+ * Without the address column in payment_log, pay-ins are stored and read without their address.
+ */
 public class UserService {
   private final static Logger LOG = LoggerFactory.getLogger(UserService.class);
+  private final static Metrics.Timer EMAIL_QUERY = queryTimer("investor_email");
+  private final static Metrics.Timer EMAILS_QUERY = queryTimer("investor_emails");
+  private final static Metrics.Timer TOTAL_QUERY = queryTimer("payin_total");
+  private final static Metrics.Timer ADDRESS_TOTALS_QUERY = queryTimer("address_totals");
+  private final static Metrics.Timer HISTORY_QUERY = queryTimer("payin_history");
 
   private final DataSource dataSource;
+  private final Map<String, String> emailsByEtherPublicKey = new ConcurrentHashMap<>();
+  private final Map<String, String> emailsByBitcoinPublicKey = new ConcurrentHashMap<>();
+  private final PayInWriter payInWriter;
+  private final boolean hasAddressColumn;
 
-  public UserService(DataSource dataSource) {
+  /**
+   * @param payInBatchSize Maximum number of pay-ins written in one statement
+   * @param payInFlushMillis Time to wait for more pay-ins before a batch is written
+   * @param createSchema Whether to add the address column to payment_log if it is missing
+   */
+  public UserService(DataSource dataSource, int payInBatchSize, long payInFlushMillis,
+      boolean createSchema) throws SQLException {
     this.dataSource = dataSource;
+    this.hasAddressColumn = checkAddressColumn(createSchema);
+    this.payInWriter = new PayInWriter(dataSource, payInBatchSize, payInFlushMillis,
+        hasAddressColumn);
+  }
+
+  /**
+   * Adds an investor to the cache
+   * @param bitcoinPublicKey Pay-in bitcoin public key, may be null
+   * @param etherPublicKey Pay-in ether public key, may be null
+   */
+  public void cacheInvestor(String bitcoinPublicKey, String etherPublicKey, String email) {
+    if (email == null)
+      return;
+    if (bitcoinPublicKey != null)
+      emailsByBitcoinPublicKey.put(bitcoinPublicKey, email);
+    if (etherPublicKey != null)
+      emailsByEtherPublicKey.put(etherPublicKey, email);
   }
 
   public String getEmailForEtherPublicKey(String ethereumPublicKey) throws SQLException {
+    String email = emailsByEtherPublicKey.get(ethereumPublicKey);
+    return email != null ? email : refreshEmailForEtherPublicKey(ethereumPublicKey);
+  }
+
+  public String getEmailForBitcoinPublicKey(String bitcoinPublicKey) throws SQLException {
+    String email = emailsByBitcoinPublicKey.get(bitcoinPublicKey);
+    return email != null ? email : refreshEmailForBitcoinPublicKey(bitcoinPublicKey);
+  }
+
+  /**
+   * Reads the email for the key from the database and updates the cache
+   */
+  public String refreshEmailForEtherPublicKey(String ethereumPublicKey) throws SQLException {
+    long start = System.nanoTime();
     try (
         Connection conn = dataSource.getConnection();
         PreparedStatement preparedStatement = conn.prepareStatement(""
@@ -30,15 +90,23 @@ public class UserService {
       preparedStatement.setString(1, ethereumPublicKey);
       try (ResultSet rs = preparedStatement.executeQuery()) {
         if (rs.next()) {
-          return rs.getString("email");
+          String email = rs.getString("email");
+          cacheInvestor(null, ethereumPublicKey, email);
+          return email;
         } else {
           throw new RuntimeException("Result set empty from getEmailForEtherPublicKey");
         }
       }
+    } finally {
+      EMAIL_QUERY.recordSince(start);
     }
   }
 
-  public String getEmailForBitcoinPublicKey(String bitcoinPublicKey) throws SQLException {
+  /**
+   * Reads the email for the key from the database and updates the cache
+   */
+  public String refreshEmailForBitcoinPublicKey(String bitcoinPublicKey) throws SQLException {
+    long start = System.nanoTime();
     try (
         Connection conn = dataSource.getConnection();
         PreparedStatement preparedStatement = conn.prepareStatement(""
@@ -47,42 +115,229 @@ public class UserService {
       preparedStatement.setString(1, bitcoinPublicKey);
       try (ResultSet rs = preparedStatement.executeQuery()) {
         if (rs.next()) {
-          return rs.getString("email");
+          String email = rs.getString("email");
+          cacheInvestor(bitcoinPublicKey, null, email);
+          return email;
         } else {
           throw new RuntimeException("Result set empty from getEmailForBitcoinPublicKey");
         }
       }
+    } finally {
+      EMAIL_QUERY.recordSince(start);
     }
   }
 
   /**
-   * Insert intso payment_log table
+   * Reads the emails for the keys from the database and updates the cache. Keys without an
+   * investor are ignored.
+   */
+  public void refreshEmailsForEtherPublicKeys(Collection<String> etherPublicKeys)
+      throws SQLException {
+    refreshEmails("pay_in_ether_public_key", etherPublicKeys,
+        (publicKey, email) -> cacheInvestor(null, publicKey, email));
+  }
+
+  /**
+   * Reads the emails for the keys from the database and updates the cache. Keys without an
+   * investor are ignored.
+   */
+  public void refreshEmailsForBitcoinPublicKeys(Collection<String> bitcoinPublicKeys)
+      throws SQLException {
+    refreshEmails("pay_in_bitcoin_public_key", bitcoinPublicKeys,
+        (publicKey, email) -> cacheInvestor(publicKey, null, email));
+  }
+
+  private void refreshEmails(String column, Collection<String> publicKeys,
+      BiConsumer<String, String> cache) throws SQLException {
+    if (publicKeys.isEmpty())
+      return;
+    long start = System.nanoTime();
+    try (
+        Connection conn = dataSource.getConnection();
+        PreparedStatement preparedStatement = conn.prepareStatement(""
+            + "SELECT " + column + " AS public_key, email FROM investor WHERE " + column
+            + " = ANY(?)");
+    ) {
+      preparedStatement.setArray(1, conn.createArrayOf("varchar", publicKeys.toArray()));
+      try (ResultSet rs = preparedStatement.executeQuery()) {
+        while (rs.next()) {
+          cache.accept(rs.getString("public_key"), rs.getString("email"));
+        }
+      }
+    } finally {
+      EMAILS_QUERY.recordSince(start);
+    }
+  }
+
+  /**
+   * @return The sum in USD of all pay-ins in the payment_log table for the given currency
+   */
+  public BigDecimal getTotalPayInUSD(String currency) throws SQLException {
+    long start = System.nanoTime();
+    try (
+        Connection conn = dataSource.getConnection();
+        PreparedStatement preparedStatement = conn.prepareStatement(""
+            + "SELECT COALESCE(SUM(usd), 0) AS total FROM payment_log WHERE currency = ?");
+    ) {
+      preparedStatement.setString(1, currency);
+      try (ResultSet rs = preparedStatement.executeQuery()) {
+        rs.next();
+        return rs.getBigDecimal("total");
+      }
+    } finally {
+      TOTAL_QUERY.recordSince(start);
+    }
+  }
+
+  /**
+   * Adds the totals per address of all pay-ins in the payment_log table to the index
+   */
+  public void loadAddressTotals(PayInIndex payInIndex) throws SQLException {
+    if (!hasAddressColumn)
+      return;
+    long start = System.nanoTime();
+    try (
+        Connection conn = dataSource.getConnection();
+        PreparedStatement preparedStatement = conn.prepareStatement(""
+            + "SELECT address, currency, COUNT(*) AS payins, SUM(paymentvalue) AS value, \n"
+            + "  SUM(usd) AS usd FROM payment_log \n"
+            + "WHERE address IS NOT NULL GROUP BY address, currency");
+    ) {
+      conn.setAutoCommit(false); // Required for the fetch size to take effect
+      preparedStatement.setFetchSize(10_000);
+      try (ResultSet rs = preparedStatement.executeQuery()) {
+        while (rs.next()) {
+          BigDecimal value = rs.getBigDecimal("value");
+          BigDecimal usd = rs.getBigDecimal("usd");
+          payInIndex.add(rs.getString("address"), rs.getString("currency"), rs.getLong("payins"),
+              value != null ? value.toBigInteger() : BigInteger.ZERO,
+              usd != null ? usd : BigDecimal.ZERO);
+        }
+      }
+      conn.commit();
+    } finally {
+      ADDRESS_TOTALS_QUERY.recordSince(start);
+    }
+  }
+
+  /**
+   * Reads the pay-ins after the given one, in order of creation date and identifier, and passes
+   * them to the visitor while the rows are fetched.
+   * @param afterCreationDate Creation date of the last pay-in already read, or null to start
+   * @param afterIdentifier Identifier of the last pay-in already read, or null to start
+   */
+  public void readPayIns(Timestamp afterCreationDate, String afterIdentifier, int limit,
+      PayInVisitor visitor) throws SQLException, IOException {
+    boolean hasCursor = afterCreationDate != null && afterIdentifier != null;
+    long start = System.nanoTime();
+    try (
+        Connection conn = dataSource.getConnection();
+        PreparedStatement preparedStatement = conn.prepareStatement(""
+            + "SELECT tx_identifier, creation_date, currency, paymentvalue, fx_rate, usd, email, \n"
+            + (hasAddressColumn ? "  address " : "  NULL AS address ") + "FROM payment_log \n"
+            + (hasCursor ? "WHERE (creation_date, tx_identifier) > (?, ?) \n" : "")
+            + "ORDER BY creation_date, tx_identifier LIMIT ?");
+    ) {
+      conn.setAutoCommit(false); // Required for the fetch size to take effect
+      preparedStatement.setFetchSize(500);
+      int parameter = 1;
+      if (hasCursor) {
+        preparedStatement.setTimestamp(parameter++, afterCreationDate);
+        preparedStatement.setString(parameter++, afterIdentifier);
+      }
+      preparedStatement.setInt(parameter, limit);
+      try (ResultSet rs = preparedStatement.executeQuery()) {
+        while (rs.next()) {
+          visitor.visit(rs.getString("tx_identifier"), rs.getTimestamp("creation_date"),
+              rs.getString("currency"), rs.getBigDecimal("paymentvalue"),
+              rs.getBigDecimal("fx_rate"), rs.getBigDecimal("usd"), rs.getString("email"),
+              rs.getString("address"));
+        }
+      }
+      conn.commit();
+    } finally {
+      HISTORY_QUERY.recordSince(start);
+    }
+  }
+
+  /**
+   * Queues a pay-in for insertion into the payment_log table. Pay-ins are written in batches by
+   * the pay-in writer.
+   * @return Completes with true when the insert was successful, false when the payment was already
+   * registered, or exceptionally with an SQLException
+   */
+  public CompletableFuture<Boolean> savePayInAsync(String identifier, String currency,
+      BigInteger value, BigDecimal fxRate, BigDecimal usd, String email, String address) {
+    return payInWriter.save(identifier, currency, value, fxRate, usd, email, address);
+  }
+
+  /**
+   * Insert into payment_log table and wait for the write
    * @return true, when the insert was successful. false when the payment was already registered.
    * @throws SQLException
    */
   public boolean savePayIn(String identifier, String currency, BigInteger value, BigDecimal fxRate,
-      BigDecimal usd, String email)
+      BigDecimal usd, String email, String address)
       throws SQLException {
+    try {
+      return savePayInAsync(identifier, currency, value, fxRate, usd, email, address).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while saving pay-in", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof SQLException)
+        throw (SQLException) e.getCause();
+      throw new SQLException(e.getCause());
+    }
+  }
+
+  /**
+   * Adds the column for the pay-in address to the payment_log table if it is missing and
+   * createSchema is set
+   * @return Whether payment_log has the address column
+   */
+  private boolean checkAddressColumn(boolean createSchema) throws SQLException {
+    if (DatabaseSchema.hasColumn(dataSource, "payment_log", "address"))
+      return true;
+    if (!createSchema) {
+      LOG.warn("Column address is missing in payment_log, pay-ins are stored without address. "
+          + "Run 'ALTER TABLE payment_log ADD COLUMN address VARCHAR(64)' to add it");
+      return false;
+    }
     try (
         Connection conn = dataSource.getConnection();
-        PreparedStatement preparedStatement = conn.prepareStatement(""
-            + "INSERT INTO payment_log (tx_identifier, creation_date, currency, paymentvalue, fx_rate,"
-            + "usd, email) "
-            + "VALUES (?, ?, ?, ?, ?, ?, ?) "
-            + "ON CONFLICT DO NOTHING RETURNING TRUE");
+        Statement statement = conn.createStatement();
     ) {
-      Timestamp now = Timestamp.from(Instant.now());
-      BigDecimal paymentValue = new BigDecimal(value);
-      preparedStatement.setString(1, identifier);
-      preparedStatement.setTimestamp(2, now);
-      preparedStatement.setString(3, currency);
-      preparedStatement.setBigDecimal(4, paymentValue);
-      preparedStatement.setBigDecimal(5, fxRate);
-      preparedStatement.setBigDecimal(6, usd);
-      preparedStatement.setString(7, email);
-      boolean inserted = preparedStatement.executeQuery().next();
-      return inserted;
+      statement.execute("ALTER TABLE payment_log ADD COLUMN address VARCHAR(64)");
     }
+    LOG.info("Added column address to payment_log");
+    return true;
+  }
+
+  PayInWriter getPayInWriter() {
+    return payInWriter;
+  }
+
+  /**
+   * Writes all queued pay-ins
+   */
+  public void stop() {
+    payInWriter.stop();
+  }
+
+  /**
+   * @param query Name of the query in the metrics
+   */
+  static Metrics.Timer queryTimer(String query) {
+    return Metrics.timer("db_query_seconds", "Latency of database queries", "query", query);
+  }
+
+  /**
+   * Receives the rows of {@link #readPayIns}
+   */
+  public interface PayInVisitor {
+    void visit(String identifier, Timestamp creationDate, String currency, BigDecimal value,
+        BigDecimal fxRate, BigDecimal usd, String email, String address) throws IOException;
   }
 
 }
@@ -0,0 +1,113 @@
+package modum.io.monitor;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.URI;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.LongConsumer;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketListener;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+
+/**
+ * New heads subscription over a WebSocket connection to the node, for nodes on another host
+ */
+class WebSocketNewHeadsSubscription extends NewHeadsSubscription {
+  private final URI uri;
+  private WebSocketClient client;
+  private volatile Connection connection;
+
+  WebSocketNewHeadsSubscription(String url, LongConsumer onHead) {
+    super(url, onHead);
+    this.uri = URI.create(url);
+  }
+
+  @Override
+  void open() throws IOException {
+    if (client == null) {
+      WebSocketClient client = new WebSocketClient(new SslContextFactory());
+      try {
+        client.start();
+      } catch (Exception e) {
+        throw new IOException("Could not start WebSocket client: " + e.getMessage(), e);
+      }
+      this.client = client;
+    }
+    Connection connection = new Connection();
+    this.connection = connection;
+    try {
+      connection.session = client.connect(connection, uri)
+          .get(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    } catch (ExecutionException | TimeoutException e) {
+      throw new ConnectException("Could not connect to WebSocket " + uri + ": "
+          + (e instanceof ExecutionException ? e.getCause().getMessage() : "Timeout"));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ConnectException("Interrupted while connecting to WebSocket " + uri);
+    }
+  }
+
+  @Override
+  void send(String message) throws IOException {
+    connection.session.getRemote().sendString(message);
+  }
+
+  @Override
+  void closeConnection() {
+    Connection connection = this.connection;
+    this.connection = null;
+    if (connection != null && connection.session != null)
+      connection.session.close();
+  }
+
+  @Override
+  public void close() {
+    super.close();
+    if (client != null) {
+      try {
+        client.stop();
+      } catch (Exception e) {
+        // Stopped anyway
+      }
+    }
+  }
+
+  private class Connection implements WebSocketListener {
+    private volatile Session session;
+
+    @Override
+    public void onWebSocketText(String message) {
+      if (connection != this)
+        return;
+      try {
+        received(objectMapper.readTree(message));
+      } catch (IOException e) {
+        disconnected("Invalid message from node: " + e.getMessage());
+      }
+    }
+
+    @Override
+    public void onWebSocketClose(int statusCode, String reason) {
+      if (connection == this)
+        disconnected("WebSocket closed: " + statusCode + " " + reason);
+    }
+
+    @Override
+    public void onWebSocketError(Throwable cause) {
+      if (connection == this)
+        disconnected("WebSocket error: " + cause.getMessage());
+    }
+
+    @Override
+    public void onWebSocketConnect(Session session) {
+      this.session = session;
+    }
+
+    @Override
+    public void onWebSocketBinary(byte[] payload, int offset, int length) {
+    }
+  }
+}
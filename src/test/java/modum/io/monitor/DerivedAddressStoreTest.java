@@ -0,0 +1,132 @@
+package modum.io.monitor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import javax.sql.DataSource;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.params.TestNet3Params;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Round trips of derived addresses through the 'derived_address' table of an embedded Postgres,
+ * compared with freshly derived addresses.
+ */
+public class DerivedAddressStoreTest {
+  private static EmbeddedPostgres postgres;
+  private static DataSource dataSource;
+
+  @BeforeClass
+  public static void startDatabase() throws IOException {
+    postgres = EmbeddedPostgres.start();
+    dataSource = postgres.getPostgresDatabase();
+  }
+
+  @AfterClass
+  public static void stopDatabase() throws IOException {
+    postgres.close();
+  }
+
+  @Before
+  public void dropTable() throws SQLException {
+    try (
+        Connection conn = dataSource.getConnection();
+        Statement statement = conn.createStatement();
+    ) {
+      statement.execute("DROP TABLE IF EXISTS derived_address");
+    }
+  }
+
+  @Test
+  public void bitcoinAddressesRoundTrip() throws SQLException {
+    NetworkParameters params = MainNetParams.get();
+    String scheme = DerivedAddressStore.bitcoinScheme(params);
+    DerivedAddressStore store = new DerivedAddressStore(dataSource, true);
+    for (int i = 1; i <= 10; i++) {
+      String publicKey = publicKey(i);
+      store.put(scheme, publicKey, BitcoinMonitor.deriveAddress(publicKey, params).getHash160());
+    }
+    assertEquals(10, store.save());
+    assertEquals(0, store.save());
+
+    DerivedAddressStore loaded = new DerivedAddressStore(dataSource, true);
+    loaded.load();
+    assertEquals(10, loaded.size());
+    for (int i = 1; i <= 10; i++) {
+      String publicKey = publicKey(i);
+      assertArrayEquals(BitcoinMonitor.deriveAddress(publicKey, params).getHash160(),
+          loaded.get(scheme, publicKey));
+    }
+    assertNull(loaded.get(scheme, publicKey(11)));
+  }
+
+  @Test
+  public void etherAddressesRoundTrip() throws SQLException {
+    DerivedAddressStore store = new DerivedAddressStore(dataSource, true);
+    for (int i = 1; i <= 10; i++) {
+      String publicKey = publicKey(i);
+      store.put(DerivedAddressStore.ETHER_SCHEME, publicKey,
+          EthereumMonitor.deriveAddress(publicKey));
+    }
+    assertEquals(10, store.save());
+
+    DerivedAddressStore loaded = new DerivedAddressStore(dataSource, true);
+    loaded.load();
+    for (int i = 1; i <= 10; i++) {
+      String publicKey = publicKey(i);
+      assertArrayEquals(EthereumMonitor.deriveAddress(publicKey),
+          loaded.get(DerivedAddressStore.ETHER_SCHEME, publicKey));
+    }
+  }
+
+  @Test
+  public void schemesAreSeparate() throws SQLException {
+    NetworkParameters mainNet = MainNetParams.get();
+    NetworkParameters testNet = TestNet3Params.get();
+    String publicKey = publicKey(1);
+    DerivedAddressStore store = new DerivedAddressStore(dataSource, true);
+    store.put(DerivedAddressStore.bitcoinScheme(mainNet), publicKey,
+        BitcoinMonitor.deriveAddress(publicKey, mainNet).getHash160());
+    store.save();
+
+    DerivedAddressStore loaded = new DerivedAddressStore(dataSource, true);
+    loaded.load();
+    assertNull(loaded.get(DerivedAddressStore.bitcoinScheme(testNet), publicKey));
+    assertNull(loaded.get(DerivedAddressStore.ETHER_SCHEME, publicKey));
+    assertArrayEquals(BitcoinMonitor.deriveAddress(publicKey, mainNet).getHash160(),
+        loaded.get(DerivedAddressStore.bitcoinScheme(mainNet), publicKey));
+  }
+
+  @Test
+  public void keepsAddressesInMemoryWithoutTable() throws SQLException {
+    String publicKey = publicKey(1);
+    DerivedAddressStore store = new DerivedAddressStore(dataSource, false);
+    store.load();
+    store.put(DerivedAddressStore.ETHER_SCHEME, publicKey,
+        EthereumMonitor.deriveAddress(publicKey));
+    assertEquals(0, store.save());
+    assertArrayEquals(EthereumMonitor.deriveAddress(publicKey),
+        store.get(DerivedAddressStore.ETHER_SCHEME, publicKey));
+    assertFalse(DatabaseSchema.hasTable(dataSource, "derived_address"));
+  }
+
+  /**
+   * @return An uncompressed public key, as the token app stores them
+   */
+  private static String publicKey(int n) {
+    return ECKey.fromPrivate(BigInteger.valueOf(1_000L + n), false).getPublicKeyAsHex();
+  }
+}